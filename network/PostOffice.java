@@ -13,22 +13,29 @@ import nachos.threads.*;
  * The post office uses a "postal worker" thread to wait for messages to arrive
  * from the network and to place them in the appropriate queues. This cannot
  * be done in the receive interrupt handler because each queue (implemented
- * with a <tt>SynchList</tt>) is protected by a lock.
+ * with a <tt>BoundedSynchList</tt>) is protected by a lock.
+ *
+ * <p>
+ * Each port queue holds at most <tt>queueCapacity</tt> messages. If a burst
+ * of packets arrives for a port whose queue is full, the excess messages are
+ * dropped, just as if the network had lost them, instead of blocking the
+ * postal worker (and with it every other port).
  */
 public class PostOffice {
     /**
-     * Allocate a new post office, using an array of <tt>SynchList</tt>s.
+     * Allocate a new post office, using an array of
+     * <tt>BoundedSynchList</tt>s.
      * Register the interrupt handlers with the network hardware and start the
      * "postal worker" thread.
      */
     public PostOffice() {
-	messageReceived = new Semaphore(0);
-	messageSent = new Semaphore(0);
-	sendLock = new Lock();
+	messageReceived = new Semaphore(0, "PostOffice.messageReceived");
+	messageSent = new Semaphore(0, "PostOffice.messageSent");
+	sendLock = new Lock("PostOffice.sendLock");
 
-	queues = new SynchList[MailMessage.portLimit];
+	queues = new BoundedSynchList[MailMessage.portLimit];
 	for (int i=0; i<queues.length; i++)
-	    queues[i] = new SynchList();
+	    queues[i] = new BoundedSynchList(queueCapacity);
 
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
@@ -66,6 +73,52 @@ public class PostOffice {
 	return mail;
     }
 
+    /**
+     * Retrieve a message on the specified port, waiting at most
+     * <i>timeout</i> ticks for one to arrive. Protocols can use this to drive
+     * retransmission without a separate timer thread.
+     *
+     * @param	port	the port on which to wait for a message.
+     * @param	timeout	the maximum number of clock ticks to wait.
+     *
+     * @return	the message received, or <tt>null</tt> if none arrived in
+     *		time.
+     */
+    public MailMessage receive(int port, long timeout) {
+	Lib.assertTrue(port >= 0 && port < queues.length);
+
+	Lib.debug(dbgNet, "waiting " + timeout + " ticks for mail on port "
+		  + port);
+
+	MailMessage mail = (MailMessage) queues[port].removeFirst(timeout);
+
+	if (Lib.test(dbgNet) && mail != null)
+	    System.out.println("got mail on port " + port + ": " + mail);
+
+	return mail;
+    }
+
+    /**
+     * Retrieve all messages currently waiting on the specified port, up to
+     * <i>max</i> of them, without blocking.
+     *
+     * @param	port	the port to collect messages from.
+     * @param	mail	the array to store the messages in.
+     * @param	max	the maximum number of messages to collect.
+     *
+     * @return	the number of messages stored in <i>mail</i>.
+     */
+    public int receive(int port, MailMessage[] mail, int max) {
+	Lib.assertTrue(port >= 0 && port < queues.length);
+
+	int count = queues[port].drainTo(mail, max);
+
+	if (Lib.test(dbgNet) && count > 0)
+	    System.out.println("got " + count + " messages on port " + port);
+
+	return count;
+    }
+
     /**
      * Wait for incoming messages, and then put them in the correct mailbox.
      */
@@ -89,7 +142,8 @@ public class PostOffice {
 				   + ": " + mail);
 
 	    // atomically add message to the mailbox and wake a waiting thread
-	    queues[mail.dstPort].add(mail);
+	    if (!queues[mail.dstPort].offer(mail))
+		Lib.debug(dbgNet, "port " + mail.dstPort + " full, dropping mail");
 	}
     }
 
@@ -125,10 +179,13 @@ public class PostOffice {
 	messageSent.V();
     }
 
-    private SynchList[] queues;
+    private BoundedSynchList[] queues;
     private Semaphore messageReceived;	// V'd when a message can be dequeued
     private Semaphore messageSent;	// V'd when a message can be queued
     private Lock sendLock;
 
+    /** The maximum number of messages queued on a single port. */
+    public static final int queueCapacity = 32;
+
     private static final char dbgNet = 'n';
 }
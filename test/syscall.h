@@ -25,6 +25,9 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFork		13
+#define syscallMunmap		14
+#define syscallSbrk		15
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -53,7 +56,7 @@
  */
 void halt();
 
-/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join() */
+/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join(), fork() */
 
 /**
  * Terminate the current process immediately. Any open file descriptors
@@ -109,6 +112,18 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
+/**
+ * Create a child process that is a copy of the current process. The child has
+ * a new unique process ID and a copy of the parent's memory, and inherits the
+ * parent's open file descriptors, each with its own file position starting at
+ * the parent's. Memory is shared copy-on-write, so fork() does not copy a
+ * page until one of the processes writes it.
+ *
+ * Both processes return from fork(): the parent with the child's process ID,
+ * and the child with 0. On error, the parent gets -1 and no child is created.
+ */
+int fork();
+
 /* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
@@ -215,19 +230,40 @@ int close(int fileDescriptor);
 int unlink(char *name);
 
 /**
- * Map the file referenced by fileDescriptor into memory at address. The file
- * may be as large as 0x7FFFFFFF bytes.
- * 
- * To maintain consistency, further calls to read() and write() on this file
- * descriptor will fail (returning -1) until the file descriptor is closed.
+ * Map the file referenced by fileDescriptor into memory at address, which
+ * must be page-aligned and must not overlap the program or another mapping.
+ * The whole file is mapped, and the rest of its last page reads as zeros.
+ * Pages are read from the file only when they are first touched.
  *
- * When the file descriptor is closed, all remaining dirty pages of the map
- * will be flushed to disk and the map will be removed.
+ * The mapping keeps its own reference to the file, so the file descriptor may
+ * be closed. Writes through the mapping reach the file when the mapping is
+ * removed with munmap(), or when the process exits; only pages that were
+ * written are written back, and the file is never extended.
  *
  * Returns the length of the file on success, or -1 if an error occurred.
  */
 int mmap(int fileDescriptor, char *address);
 
+/**
+ * Remove the mapping created by mmap() at address, writing back the pages
+ * that were written.
+ *
+ * Returns 0 on success, or -1 if no file is mapped at address or a page could
+ * not be written back.
+ */
+int munmap(char *address);
+
+/**
+ * Move the end of the heap by increment bytes, which may be negative. The
+ * heap starts out empty, at the first page above the stack and the argument
+ * page. New heap memory reads as zeros, and costs no physical memory until
+ * it is touched; memory given back by a negative increment is freed at once.
+ *
+ * Returns the old end of the heap, so sbrk(0) returns the current end, or -1
+ * if the heap would shrink below its start or run into a mapped file.
+ */
+void *sbrk(int increment);
+
 /**
  * Attempt to initiate a new connection to the specified port on the specified
  * remote host, and return a new file descriptor referring to the connection.
@@ -1,6 +1,5 @@
 package nachos.threads;
 import nachos.machine.*;
-import java.util.PriorityQueue;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
@@ -16,6 +15,12 @@ public class Alarm {
      */
 	
     public Alarm() {
+    	for(int i = 0; i < wheel.length; i++) {
+    		wheel[i] = new WaitThread(null);
+    		wheel[i].prev = wheel[i].next = wheel[i];
+    	}
+    	processedTick = Machine.timer().getTime() / timerSlack;
+    	
     	Machine.timer().setInterruptHandler(new Runnable() {
 		public void run() { timerInterrupt(); }
 	    });
@@ -25,37 +30,87 @@ public class Alarm {
      * Takes wake-up time and sleeping KThread as arguments
      * We merge these parameters into a singl object, to be used
      * by other methods (ex. putting the object into a wait queue)
+     *
+     * <p>
+     * A WaitThread is also the node linking it into its slot of the timing
+     * wheel, so scheduling and cancelling never allocate. Synchronization
+     * primitives that wait with a timeout subclass this and override
+     * <tt>timeout()</tt>, so that they can take the thread off their own wait
+     * list before the alarm wakes it.
      */
-    final class WaitThread implements Comparable<WaitThread>{
-    	private final long wakeTime;
-    	private final KThread waitThread;
+    public static class WaitThread {
+    	private long wakeTick;
+    	private boolean expired = false;
+    	private KThread waitThread;
+    	private WaitThread prev = null, next = null;
     	
-    	public WaitThread(long wakeTime, KThread waitThread){
-    		this.wakeTime = wakeTime;
+    	public WaitThread(KThread waitThread){
     		this.waitThread = waitThread;
     	}
     	
+    	/**
+    	 * Returns the time at or after which the alarm will wake this thread.
+    	 */
     	public long getWakeTime(){
-    		return wakeTime;
+    		return wakeTick * timerSlack;
     	}
     	
     	public KThread getWaitThread(){
     		return waitThread;
     	}
     	
-    	@Override
-    	public int compareTo(WaitThread wT){
-    		return Long.compare(this.getWakeTime(), wT.getWakeTime());
+    	/**
+    	 * Returns true if the alarm woke this thread because its wake-up
+    	 * time passed, rather than the thread being woken (and this timer
+    	 * cancelled) by someone else.
+    	 */
+    	public boolean isExpired(){
+    		return expired;
+    	}
+    	
+    	/**
+    	 * Called by the timer interrupt handler, with interrupts disabled,
+    	 * just before the waiting thread is made ready.
+    	 */
+    	protected void timeout(){
+    	}
+    	
+    	private boolean isScheduled(){
+    		return next != null;
+    	}
+    	
+    	private void linkBefore(WaitThread head){
+    		prev = head.prev;
+    		next = head;
+    		prev.next = this;
+    		head.prev = this;
+    	}
+    	
+    	private void unlink(){
+    		prev.next = next;
+    		next.prev = prev;
+    		prev = next = null;
     	}
     }
     
     /**
-     * Set up "sleep queue" priority queue to store sleeping threads.
-     * Uses "WaitThread" objects, described above.
-     * Beware that since this is unbounded, adding too many tasks
-     * could lead to an out-of-memory exception.
+     * The "sleep queue" is a hashed timing wheel. Time is divided into ticks
+     * of <tt>timerSlack</tt> clock ticks, and a thread waking in tick
+     * <i>t</i> is linked into slot <i>t</i> mod <tt>wheelSize</tt>. Each
+     * slot is a circular list with a sentinel head, so inserting and
+     * cancelling are O(1). Threads more than one revolution away share a slot
+     * with nearer ones and are skipped until their tick comes around.
+     *
+     * <p>
+     * Wake-up times are rounded up to a whole tick, so threads whose times
+     * fall in the same tick are all woken in one pass of the interrupt
+     * handler, at most <tt>timerSlack</tt> clock ticks late.
      */
-    PriorityQueue<WaitThread> sleepQueue = new PriorityQueue<>();
+    private WaitThread[] wheel = new WaitThread[wheelSize];
+    /** Every tick up to and including this one has been expired. */
+    private long processedTick;
+    /** Nodes for waitUntil(), recycled instead of allocated per call. */
+    private WaitThread freeNodes = null;
     
     
     /**
@@ -64,28 +119,50 @@ public class Alarm {
      * thread to yield, forcing a context switch if there is another thread
      * that should be run.
      * 
-     * Threads in the sleepQueue will be put into the ready queue (and removed
-     * from the sleep queue) if their wake-up time is earlier than the currentTime.
+     * Every wheel slot whose tick has passed since the last interrupt is
+     * visited once, and the threads due in it are put into the ready queue
+     * (and removed from the wheel).
      */
     public void timerInterrupt() {
-    	while(true) //ends when queue is empty or head's wake-up-time > currentTime
-    	{
-    		if(sleepQueue.peek() == null)
-    			break;
-    		else if(Machine.timer().getTime() > sleepQueue.peek().getWakeTime())
-    			sleepQueue.poll().getWaitThread().ready();
-    		else
-    			break;
+    	long currentTick = Machine.timer().getTime() / timerSlack;
+    	
+    	if(currentTick - processedTick >= wheelSize) {
+    		for(int i = 0; i < wheelSize; i++)
+    			expireSlot(wheel[i], currentTick);
     	}
+    	else {
+    		for(long t = processedTick + 1; t <= currentTick; t++)
+    			expireSlot(wheel[(int) (t & wheelMask)], currentTick);
+    	}
+    	processedTick = currentTick;
+    	
     	KThread.currentThread().yield();
     }
+    
+    /**
+     * Wake every thread in the slot headed by <i>head</i> whose tick is no
+     * later than <i>currentTick</i>.
+     */
+    private void expireSlot(WaitThread head, long currentTick) {
+    	WaitThread waiter = head.next;
+    	while(waiter != head) {
+    		WaitThread next = waiter.next;
+    		if(waiter.wakeTick <= currentTick) {
+    			waiter.unlink();
+    			waiter.expired = true;
+    			waiter.timeout();
+    			waiter.getWaitThread().ready();
+    		}
+    		waiter = next;
+    	}
+    }
 
     /**
      * Put the current thread to sleep for at least <i>x</i> ticks,
      * waking it up in the timer interrupt handler. The thread is put
-     * in a "WaitThread" object, and that object is put in a priority queue.
-     * All threads in the priority queue will be woken up (placed in the scheduler
-     * ready set) during the first timer interrupt where
+     * in a "WaitThread" node, and that node is put in the timing wheel.
+     * The thread will be woken up (placed in the scheduler ready set) during
+     * the first timer interrupt where
      *
      * <p><blockquote>
      * (current time) >= (WaitUntil called time)+(x)
@@ -96,17 +173,73 @@ public class Alarm {
      * @see	nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-    	long wakeTime = Machine.timer().getTime() + x;
-    	
     	boolean interruptStatus = Machine.interrupt().disable(); //disabling interrupts seems to be necessary
 	
-    	WaitThread newWaitThread = new WaitThread(wakeTime, KThread.currentThread());
-    	sleepQueue.add(newWaitThread);
-    	KThread.currentThread().sleep();
+    	WaitThread waiter = freeNodes;
+    	if(waiter != null) {
+    		freeNodes = waiter.next;
+    		waiter.next = null;
+    		waiter.waitThread = KThread.currentThread();
+    	}
+    	else {
+    		waiter = new WaitThread(KThread.currentThread());
+    	}
+    	
+    	schedule(waiter, x);
+    	KThread.sleep();
+    	
+    	waiter.waitThread = null;
+    	waiter.next = freeNodes;
+    	freeNodes = waiter;
     	
     	Machine.interrupt().restore(interruptStatus); //reenabling interrupts
     }
     
+    /**
+     * Arrange for the thread in <i>waiter</i> to be woken at least <i>x</i>
+     * ticks from now, unless the timer is cancelled first. Does not put the
+     * thread to sleep; the caller does that once it has queued the thread
+     * wherever else it may be woken from. Must be called with interrupts
+     * disabled.
+     *
+     * @param	waiter	the timer to schedule. Must not already be scheduled.
+     * @param	x	the minimum number of clock ticks to wait.
+     */
+    public void schedule(WaitThread waiter, long x) {
+    	Lib.assertTrue(Machine.interrupt().disabled());
+    	Lib.assertTrue(!waiter.isScheduled());
+    	
+    	long wakeTime = Machine.timer().getTime() + Math.max(x, 0);
+    	waiter.wakeTick = Math.max((wakeTime + timerSlack - 1) / timerSlack,
+    				   processedTick + 1);
+    	waiter.expired = false;
+    	waiter.linkBefore(wheel[(int) (waiter.wakeTick & wheelMask)]);
+    }
+    
+    /**
+     * Cancel a timer set with <tt>schedule()</tt>. Called by whoever wakes a
+     * timed waiter early. Must be called with interrupts disabled.
+     *
+     * @param	waiter	the timer to cancel.
+     * @return	<tt>true</tt> if the timer was still pending, or
+     *		<tt>false</tt> if it had already expired.
+     */
+    public boolean cancel(WaitThread waiter) {
+    	Lib.assertTrue(Machine.interrupt().disabled());
+    	
+    	if(!waiter.isScheduled())
+    		return false;
+    	
+    	waiter.unlink();
+    	return true;
+    }
+    
+    /** The granularity, in clock ticks, that wake-up times are rounded to. */
+    public static final int timerSlack = 100;
+    /** The number of slots in the timing wheel. Must be a power of two. */
+    private static final int wheelSize = 256;
+    private static final long wheelMask = wheelSize - 1;
+    
     /**
      * Used to test alarm class
      *
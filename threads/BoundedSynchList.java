@@ -0,0 +1,245 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A synchronized queue with a fixed capacity. Unlike <tt>SynchList</tt>, the
+ * elements are kept in a circular array, so adding and removing never
+ * allocates, and a producer that finds the queue full either waits for room
+ * (<tt>add()</tt>) or is told to back off (<tt>offer()</tt>).
+ *
+ * <p>
+ * Consumers can take a single element (<tt>removeFirst()</tt>,
+ * <tt>poll()</tt>) or everything that is currently queued in one lock hold
+ * (<tt>drainTo()</tt>).
+ */
+public class BoundedSynchList {
+    /**
+     * Allocate a new bounded synchronized queue.
+     *
+     * @param	capacity	the maximum number of elements the queue can
+     *				hold. Must be positive.
+     */
+    public BoundedSynchList(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	ring = new Object[capacity];
+	lock = new Lock();
+	listEmpty = new Condition(lock);
+	listFull = new Condition(lock);
+    }
+
+    /**
+     * Add the specified object to the end of the queue, blocking until there
+     * is room if necessary. If another thread is waiting for an element, it
+     * is woken up.
+     *
+     * @param	o	the object to add. Must not be <tt>null</tt>.
+     */
+    public void add(Object o) {
+	Lib.assertTrue(o != null);
+
+	lock.acquire();
+	while (count == ring.length)
+	    listFull.sleep();
+	enqueue(o);
+	lock.release();
+    }
+
+    /**
+     * Add the specified object to the end of the queue if there is room,
+     * without blocking.
+     *
+     * @param	o	the object to add. Must not be <tt>null</tt>.
+     * @return	<tt>true</tt> if the object was added, or <tt>false</tt> if
+     *		the queue was full.
+     */
+    public boolean offer(Object o) {
+	Lib.assertTrue(o != null);
+
+	boolean added = false;
+
+	lock.acquire();
+	if (count < ring.length) {
+	    enqueue(o);
+	    added = true;
+	}
+	lock.release();
+
+	return added;
+    }
+
+    /**
+     * Remove an object from the front of the queue, blocking until the queue
+     * is non-empty if necessary.
+     *
+     * @return	the element removed from the front of the queue.
+     */
+    public Object removeFirst() {
+	Object o;
+
+	lock.acquire();
+	while (count == 0)
+	    listEmpty.sleep();
+	o = dequeue();
+	lock.release();
+
+	return o;
+    }
+
+    /**
+     * Remove an object from the front of the queue, blocking for at most
+     * <i>timeout</i> ticks until the queue is non-empty.
+     *
+     * @param	timeout	the maximum number of clock ticks to wait.
+     * @return	the element removed from the front of the queue, or
+     *		<tt>null</tt> if the queue stayed empty.
+     */
+    public Object removeFirst(long timeout) {
+	Object o = null;
+	long deadline = Machine.timer().getTime() + timeout;
+
+	lock.acquire();
+	while (count == 0) {
+	    long remaining = deadline - Machine.timer().getTime();
+	    if (remaining <= 0)
+		break;
+	    listEmpty.sleepFor(remaining);
+	}
+	if (count > 0)
+	    o = dequeue();
+	lock.release();
+
+	return o;
+    }
+
+    /**
+     * Remove an object from the front of the queue if one is available,
+     * without blocking.
+     *
+     * @return	the element removed from the front of the queue, or
+     *		<tt>null</tt> if the queue was empty.
+     */
+    public Object poll() {
+	Object o = null;
+
+	lock.acquire();
+	if (count > 0)
+	    o = dequeue();
+	lock.release();
+
+	return o;
+    }
+
+    /**
+     * Remove up to <i>max</i> objects from the front of the queue and store
+     * them in <i>dst</i>, in order. Everything is taken while holding the
+     * lock once, and all producers blocked on a full queue are woken. Does
+     * not block; returns 0 if the queue is empty.
+     *
+     * @param	dst	the array to store the removed elements in.
+     * @param	max	the maximum number of elements to remove.
+     * @return	the number of elements removed.
+     */
+    public int drainTo(Object[] dst, int max) {
+	Lib.assertTrue(max >= 0 && max <= dst.length);
+
+	lock.acquire();
+
+	int n = Math.min(max, count);
+	int first = Math.min(n, ring.length - head);
+
+	System.arraycopy(ring, head, dst, 0, first);
+	System.arraycopy(ring, 0, dst, first, n - first);
+
+	// drop our references so drained elements can be collected
+	for (int i=0; i<n; i++)
+	    ring[(head+i) % ring.length] = null;
+
+	head = (head + n) % ring.length;
+	count -= n;
+
+	if (n > 0)
+	    listFull.wakeAll();
+
+	lock.release();
+
+	return n;
+    }
+
+    /**
+     * Return the maximum number of elements this queue can hold.
+     *
+     * @return	the capacity of this queue.
+     */
+    public int capacity() {
+	return ring.length;
+    }
+
+    private void enqueue(Object o) {
+	ring[(head + count) % ring.length] = o;
+	count++;
+	listEmpty.wake();
+    }
+
+    private Object dequeue() {
+	Object o = ring[head];
+	ring[head] = null;
+	head = (head + 1) % ring.length;
+	count--;
+	listFull.wake();
+	return o;
+    }
+
+    private static class PingTest implements Runnable {
+	PingTest(BoundedSynchList ping, BoundedSynchList pong) {
+	    this.ping = ping;
+	    this.pong = pong;
+	}
+
+	public void run() {
+	    for (int i=0; i<10; i++)
+		pong.add(ping.removeFirst());
+	}
+
+	private BoundedSynchList ping;
+	private BoundedSynchList pong;
+    }
+
+    /**
+     * Test that this module is working.
+     */
+    public static void selfTest() {
+	BoundedSynchList ping = new BoundedSynchList(1);
+	BoundedSynchList pong = new BoundedSynchList(1);
+
+	new KThread(new PingTest(ping, pong)).setName("ping").fork();
+
+	for (int i=0; i<10; i++) {
+	    Integer o = new Integer(i);
+	    ping.add(o);
+	    Lib.assertTrue(pong.removeFirst() == o);
+	}
+
+	BoundedSynchList list = new BoundedSynchList(4);
+	for (int i=0; i<4; i++)
+	    Lib.assertTrue(list.offer(new Integer(i)));
+	Lib.assertTrue(!list.offer(new Integer(4)));
+	Lib.assertTrue(((Integer) list.poll()).intValue() == 0);
+	Lib.assertTrue(list.offer(new Integer(4)));
+
+	Object[] batch = new Object[8];
+	Lib.assertTrue(list.drainTo(batch, batch.length) == 4);
+	for (int i=0; i<4; i++)
+	    Lib.assertTrue(((Integer) batch[i]).intValue() == i+1);
+	Lib.assertTrue(list.poll() == null);
+    }
+
+    private Object[] ring;
+    private int head = 0;
+    private int count = 0;
+
+    private Lock lock;
+    private Condition listEmpty;
+    private Condition listFull;
+}
@@ -59,9 +59,25 @@ public class Condition {
      *				<tt>wake()</tt>, or <tt>wakeAll()</tt>.
      */
     public Condition(Lock conditionLock) {
+	this(conditionLock, null);
+    }
+
+    /**
+     * Allocate a new named condition variable. The name identifies the
+     * condition variable in the contention profile, where each sleep counts
+     * as a contended acquisition.
+     *
+     * @param	conditionLock	the lock associated with this condition
+     *				variable.
+     * @param	name		the name of this condition variable.
+     *
+     * @see	nachos.threads.ContentionProfiler
+     */
+    public Condition(Lock conditionLock, String name) {
 	this.conditionLock = conditionLock;
 
 	waitQueue = new LinkedList<Semaphore>();
+	profile = ContentionProfiler.register("Condition", name);
     }
 
     /**
@@ -79,12 +95,50 @@ public class Condition {
     public void sleep() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-	Semaphore waiter = new Semaphore(0);
+	long waitStart = (profile != null) ? profile.waiting() : 0;
+	Semaphore waiter = new Semaphore(0, noProfile);
 	waitQueue.add(waiter);
 
 	conditionLock.release();
 	waiter.P();
 	conditionLock.acquire();	
+
+	if (profile != null)
+	    profile.acquired(waitStart, true);
+    }
+
+    /**
+     * Like <tt>sleep()</tt>, but also wake up if no other thread has called
+     * <tt>wake()</tt> within <i>ticks</i> clock ticks. The thread reacquires
+     * the lock before returning either way.
+     *
+     * <p>
+     * If the wait times out, this thread's semaphore is taken back off the
+     * wait queue while holding the lock. If it is no longer there, a
+     * <tt>wake()</tt> got to it first, and the sleep counts as woken.
+     *
+     * @param	ticks	the maximum number of clock ticks to sleep.
+     * @return	<tt>true</tt> if woken by <tt>wake()</tt> or
+     *		<tt>wakeAll()</tt>, or <tt>false</tt> if the sleep timed out.
+     */
+    public boolean sleepFor(long ticks) {
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+	long waitStart = (profile != null) ? profile.waiting() : 0;
+	Semaphore waiter = new Semaphore(0, noProfile);
+	waitQueue.add(waiter);
+
+	conditionLock.release();
+	boolean woken = waiter.P(ticks);
+	conditionLock.acquire();
+
+	if (!woken && !waitQueue.remove(waiter))
+	    woken = true;
+
+	if (profile != null)
+	    profile.acquired(waitStart, true);
+
+	return woken;
     }
 
     /**
@@ -111,4 +165,12 @@ public class Condition {
 
     private Lock conditionLock;
     private LinkedList<Semaphore> waitQueue;
+    private ContentionProfiler.Record profile;
+
+    /**
+     * The profile of the semaphore each sleeper waits on. The sleep is
+     * already counted in <tt>profile</tt>, and registering a record per
+     * sleep would grow the profiler's list forever.
+     */
+    private static final ContentionProfiler.Record noProfile = null;
 }
@@ -22,10 +22,26 @@ public class Condition2 {
      *				<tt>wake()</tt>, or <tt>wakeAll()</tt>.
      */
     public Condition2(Lock conditionLock) {
+    	this(conditionLock, null);
+    }
+
+    /**
+     * Allocate a new named condition variable. The name identifies the
+     * condition variable in the contention profile, where each sleep counts
+     * as a contended acquisition.
+     *
+     * @param	conditionLock	the lock associated with this condition
+     *				variable.
+     * @param	name		the name of this condition variable.
+     *
+     * @see	nachos.threads.ContentionProfiler
+     */
+    public Condition2(Lock conditionLock, String name) {
     	this.conditionLock = conditionLock;
 	
     	// Create waitingQueue
-    	waitingQueue = new LinkedList<KThread>();
+    	waitingQueue = new LinkedList<Alarm.WaitThread>();
+    	profile = ContentionProfiler.register("Condition2", name);
     }
 
     /**
@@ -38,22 +54,65 @@ public class Condition2 {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 	// Disable interrupt and release the lock
 	boolean interruptStatus = Machine.interrupt().disable();
+	long waitStart = (profile != null) ? profile.waiting() : 0;
 	conditionLock.release();
 
 	// Add the current thread to waitQueue
-	waitingQueue.add(KThread.currentThread());
+	waitingQueue.add(new Alarm.WaitThread(KThread.currentThread()));
 	
 	// Put thread to sleep
 	KThread.sleep();
 	
 	// Aquire lock after wake up
 	conditionLock.acquire();
+	if (profile != null)
+	    profile.acquired(waitStart, true);
 	
 	// Restore interrupts
 	Machine.interrupt().restore(interruptStatus);
 	
     }
 
+    /**
+     * Like <tt>sleep()</tt>, but also wake up if no other thread has called
+     * <tt>wake()</tt> within <i>ticks</i> clock ticks. The thread reacquires
+     * the lock before returning either way.
+     *
+     * @param	ticks	the maximum number of clock ticks to sleep.
+     * @return	<tt>true</tt> if woken by <tt>wake()</tt> or
+     *		<tt>wakeAll()</tt>, or <tt>false</tt> if the sleep timed out.
+     */
+    public boolean sleepFor(long ticks) {
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+	// Disable interrupt and release the lock
+	boolean interruptStatus = Machine.interrupt().disable();
+	long waitStart = (profile != null) ? profile.waiting() : 0;
+	conditionLock.release();
+
+	// Add the current thread to waitQueue; the alarm takes it back off
+	// if it times out
+	Alarm.WaitThread waiter = new Alarm.WaitThread(KThread.currentThread()) {
+		protected void timeout() {
+		    waitingQueue.remove(this);
+		}
+	    };
+	waitingQueue.add(waiter);
+	ThreadedKernel.alarm.schedule(waiter, ticks);
+
+	// Put thread to sleep
+	KThread.sleep();
+
+	// Aquire lock after wake up
+	conditionLock.acquire();
+	if (profile != null)
+	    profile.acquired(waitStart, true);
+
+	// Restore interrupts
+	Machine.interrupt().restore(interruptStatus);
+
+	return !waiter.isExpired();
+    }
+
     /**
      * Wake up at most one thread sleeping on this condition variable. The
      * current thread must hold the associated lock.
@@ -64,9 +123,12 @@ public class Condition2 {
 	// Disable interrupts
 	boolean interruptStatus = Machine.interrupt().disable();
 	
-	// Wake the first thread in the queue
-	if(waitingQueue.isEmpty() == false)
-		waitingQueue.remove().ready();
+	// Wake the first thread in the queue, cancelling its timeout if any
+	if(waitingQueue.isEmpty() == false) {
+		Alarm.WaitThread waiter = waitingQueue.remove();
+		ThreadedKernel.alarm.cancel(waiter);
+		waiter.getWaitThread().ready();
+	}
 	
 	// Restore interrupts
 	Machine.interrupt().restore(interruptStatus);
@@ -92,5 +154,6 @@ public class Condition2 {
 	
     }
     private Lock conditionLock;
-    private LinkedList<KThread> waitingQueue;
+    private LinkedList<Alarm.WaitThread> waitingQueue;
+    private ContentionProfiler.Record profile;
 }
@@ -0,0 +1,150 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Collects contention statistics for the synchronization primitives, to find
+ * out which kernel locks are hot.
+ *
+ * <p>
+ * Profiling is enabled with the <tt>L</tt> debug flag (<tt>-d L</tt>). A
+ * primitive checks the flag once, when it is constructed, by calling
+ * <tt>register()</tt>; if profiling is disabled it gets <tt>null</tt> back and
+ * never calls in here again, so the only cost is a null check per operation.
+ *
+ * <p>
+ * All times are in clock ticks, as reported by
+ * <tt>Machine.timer().getTime()</tt>. The busiest primitives are reported by
+ * <tt>print()</tt> when the kernel terminates.
+ */
+public class ContentionProfiler {
+    /**
+     * Prevent instantiation.
+     */
+    private ContentionProfiler() {
+    }
+
+    /**
+     * Start profiling a synchronization primitive.
+     *
+     * @param	kind	the kind of primitive (e.g. <tt>"Lock"</tt>).
+     * @param	name	the name given to the primitive, or <tt>null</tt> if
+     *			it was not named.
+     * @return	the record to update, or <tt>null</tt> if profiling is
+     *		disabled.
+     */
+    public static Record register(String kind, String name) {
+	if (!Lib.test(dbgProfile))
+	    return null;
+
+	if (name == null)
+	    name = "#" + records.size();
+
+	Record record = new Record(kind + " " + name);
+	records.add(record);
+	return record;
+    }
+
+    /**
+     * Print the <tt>numReported</tt> primitives that spent the most ticks
+     * waiting, if profiling is enabled.
+     */
+    public static void print() {
+	if (records.isEmpty())
+	    return;
+
+	ArrayList<Record> sorted = new ArrayList<Record>(records);
+	Collections.sort(sorted, new Comparator<Record>() {
+		public int compare(Record a, Record b) {
+		    return Long.compare(b.totalWait, a.totalWait);
+		}
+	    });
+
+	System.out.println("Contention (" + records.size()
+			   + " primitives, top " + numReported
+			   + " by wait ticks):");
+	for (int i=0; i<sorted.size() && i<numReported; i++)
+	    System.out.println("  " + sorted.get(i));
+    }
+
+    /**
+     * The statistics for one synchronization primitive. All methods must be
+     * called atomically with respect to other users of the primitive, either
+     * with interrupts disabled or while holding the primitive's lock.
+     */
+    public static class Record {
+	private Record(String name) {
+	    this.name = name;
+	}
+
+	/**
+	 * Note that a thread is about to wait for (or immediately get) the
+	 * primitive.
+	 *
+	 * @return	the current time, to be passed to <tt>acquired()</tt>.
+	 */
+	public long waiting() {
+	    return Machine.timer().getTime();
+	}
+
+	/**
+	 * Note that a thread got the primitive.
+	 *
+	 * @param	waitStart	the value returned by <tt>waiting()</tt>.
+	 * @param	contended	<tt>true</tt> if the thread had to block.
+	 * @return	the current time, to be passed to <tt>released()</tt>.
+	 */
+	public long acquired(long waitStart, boolean contended) {
+	    long now = Machine.timer().getTime();
+	    long wait = now - waitStart;
+
+	    acquisitions++;
+	    if (contended)
+		contendedAcquisitions++;
+	    totalWait += wait;
+	    maxWait = Math.max(maxWait, wait);
+	    return now;
+	}
+
+	/**
+	 * Note that the thread holding the primitive released it. Only
+	 * meaningful for primitives with a single holder, such as locks. The
+	 * primitive keeps the start of the hold itself, since the record may
+	 * see the next <tt>acquired()</tt> before the hold ends.
+	 *
+	 * @param	holdStart	the value returned by <tt>acquired()</tt>
+	 *				for this hold.
+	 */
+	public void released(long holdStart) {
+	    totalHold += Machine.timer().getTime() - holdStart;
+	    hasHolder = true;
+	}
+
+	public String toString() {
+	    return name + ": acquired " + acquisitions
+		+ ", contended " + contendedAcquisitions
+		+ ", wait total " + totalWait
+		+ " max " + maxWait
+		+ (hasHolder ? ", hold total " + totalHold : "");
+	}
+
+	private String name;
+	private int acquisitions = 0;
+	private int contendedAcquisitions = 0;
+	private long totalWait = 0;
+	private long maxWait = 0;
+	private long totalHold = 0;
+	private boolean hasHolder = false;
+    }
+
+    /** The number of primitives reported by <tt>print()</tt>. */
+    public static final int numReported = 10;
+
+    private static ArrayList<Record> records = new ArrayList<Record>();
+
+    private static final char dbgProfile = 'L';
+}
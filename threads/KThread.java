@@ -311,7 +311,14 @@ public class KThread {
 	Lib.assertTrue(idleThread == null);
 	
 	idleThread = new KThread(new Runnable() {
-	    public void run() { while (true) yield(); }
+	    public void run() {
+		while (true) {
+		    Runnable task = idleTask;
+		    if (task != null)
+			task.run();
+		    yield();
+		}
+	    }
 	});
 	idleThread.setName("idle");
 
@@ -320,6 +327,19 @@ public class KThread {
 	idleThread.fork();
     }
     
+    /**
+     * Give the idle thread something to do while no other thread is ready to
+     * run. The task's <tt>run()</tt> is called between every two yields of
+     * the idle thread, so it should do a small amount of work and return. It
+     * must never block: the idle thread is never on the ready queue, so it
+     * may only take a lock with <tt>tryAcquire(0)</tt>.
+     *
+     * @param	task	the idle task, or <tt>null</tt> to do nothing.
+     */
+    public static void setIdleTask(Runnable task) {
+	idleTask = task;
+    }
+
     /**
      * Determine the next thread to run, then dispatch the CPU to the thread
      * using <tt>run()</tt>.
@@ -484,6 +504,7 @@ public class KThread {
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
+    private static Runnable idleTask = null;
     
     // Create thread queue
     private ThreadQueue joinThreadQueue = ThreadedKernel.scheduler.newThreadQueue(true);
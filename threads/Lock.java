@@ -18,12 +18,31 @@ import nachos.machine.*;
  * Also, only the thread that acquired a lock may release it. As with
  * semaphores, the API does not allow you to read the lock state (because the
  * value could change immediately after you read it).
+ *
+ * <p>
+ * <tt>tryAcquire(timeout)</tt> gives up if the lock cannot be acquired in
+ * time. Threads waiting with a timeout queue with the others, and are handed
+ * the lock in the same order; one that times out leaves the queue (see
+ * <tt>TimedWaiters</tt>).
  */
 public class Lock {
     /**
      * Allocate a new lock. The lock will initially be <i>free</i>.
      */
     public Lock() {
+	this(null);
+    }
+
+    /**
+     * Allocate a new named lock. The name identifies the lock in the
+     * contention profile.
+     *
+     * @param	name	the name of this lock.
+     *
+     * @see	nachos.threads.ContentionProfiler
+     */
+    public Lock(String name) {
+	profile = ContentionProfiler.register("Lock", name);
     }
 
     /**
@@ -35,6 +54,8 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 	KThread thread = KThread.currentThread();
+	long waitStart = (profile != null) ? profile.waiting() : 0;
+	boolean contended = (lockHolder != null);
 
 	if (lockHolder != null) {
 	    waitQueue.waitForAccess(thread);
@@ -47,9 +68,51 @@ public class Lock {
 
 	Lib.assertTrue(lockHolder == thread);
 
+	if (profile != null)
+	    holdStart = profile.acquired(waitStart, contended);
+
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Atomically acquire this lock, giving up if it has not become free
+     * within <i>timeout</i> ticks. The current thread must not already hold
+     * this lock.
+     *
+     * @param	timeout	the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the lock was acquired, or <tt>false</tt> if
+     *		the wait timed out.
+     */
+    public boolean tryAcquire(long timeout) {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+	long waitStart = (profile != null) ? profile.waiting() : 0;
+	boolean contended = (lockHolder != null);
+
+	if (lockHolder == null) {
+	    waitQueue.acquire(thread);
+	    lockHolder = thread;
+	}
+	else if (timeout > 0) {
+	    if (timedWaiters == null)
+		timedWaiters = new TimedWaiters(waitQueue);
+
+	    waitQueue.waitForAccess(thread);
+	    timedWaiters.schedule(thread, timeout);
+	    KThread.sleep();
+	}
+
+	boolean acquired = (lockHolder == thread);
+
+	if (profile != null && acquired)
+	    holdStart = profile.acquired(waitStart, contended);
+
+	Machine.interrupt().restore(intStatus);
+	return acquired;
+    }
+
     /**
      * Atomically release this lock, allowing other threads to acquire it.
      */
@@ -58,7 +121,15 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 
-	if ((lockHolder = waitQueue.nextThread()) != null)
+	if (profile != null)
+	    profile.released(holdStart);
+
+	if (timedWaiters != null)
+	    lockHolder = timedWaiters.nextThread();
+	else
+	    lockHolder = waitQueue.nextThread();
+
+	if (lockHolder != null)
 	    lockHolder.ready();
 	
 	Machine.interrupt().restore(intStatus);
@@ -76,4 +147,9 @@ public class Lock {
     private KThread lockHolder = null;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(true);
+    /** Created by the first <tt>tryAcquire()</tt> that has to wait. */
+    private TimedWaiters timedWaiters = null;
+    private ContentionProfiler.Record profile;
+    /** When <tt>lockHolder</tt> got the lock, if profiling. */
+    private long holdStart;
 }
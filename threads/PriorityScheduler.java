@@ -146,6 +146,12 @@ public class PriorityScheduler extends Scheduler {
 	    return null;
 	}
 
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    // implement me
+	    return false;
+	}
+
 	/**
 	 * Return the next thread that <tt>nextThread()</tt> would return,
 	 * without modifying the state of this queue.
@@ -0,0 +1,238 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A <tt>RWLock</tt> is a lock that can be held either <i>shared</i>, by any
+ * number of readers at once, or <i>exclusive</i>, by a single writer:
+ *
+ * <ul>
+ * <li><tt>acquireRead()</tt>: wait until no writer holds or is waiting for
+ * the lock, then join the current readers.
+ * <li><tt>releaseRead()</tt>: leave the current readers. The last reader to
+ * leave hands the lock to a waiting writer, if there is one.
+ * <li><tt>acquireWrite()</tt>: wait until no thread holds the lock, then
+ * hold it exclusively.
+ * <li><tt>releaseWrite()</tt>: give up the lock, handing it to the next
+ * waiting writer, or else admitting every waiting reader at once.
+ * </ul>
+ *
+ * <p>
+ * Writers are preferred: once a writer is waiting, new readers queue behind
+ * it, so a steady stream of readers cannot starve writers. Readers that were
+ * held back are admitted together once no writer is left waiting.
+ *
+ * <p>
+ * When there is no writer, a reader only records itself in the reader list
+ * and never touches a thread queue. The first writer to wait for the readers
+ * makes one of them the owner of the <tt>transferPriority</tt> writer queue,
+ * so that waiting writers donate priority to it. A <tt>ThreadQueue</tt> has a
+ * single owner, and a waiting thread waits in a single queue, so only that
+ * one reader is donated to: the one that arrived last, as it is likely to be
+ * the last to leave. The other readers get no donation, and if the chosen
+ * reader leaves first the donation stays with it until the last reader hands
+ * the lock to a writer.
+ */
+public class RWLock {
+    /**
+     * Allocate a new reader-writer lock. The lock will initially be
+     * <i>free</i>.
+     */
+    public RWLock() {
+    }
+
+    /**
+     * Atomically acquire this lock in shared mode. The current thread must
+     * not already hold this lock.
+     */
+    public void acquireRead() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer != null || waitingWriters > 0) {
+	    waitingReaders++;
+	    readQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+	else {
+	    readers.add(thread);
+	}
+
+	Lib.assertTrue(readers.contains(thread));
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock from shared mode.
+     */
+    public void releaseRead() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(readers.remove(KThread.currentThread()));
+
+	if (waitingWriters > 0 && readers.isEmpty())
+	    wakeWriter();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically acquire this lock in exclusive mode. The current thread must
+     * not already hold this lock.
+     */
+    public void acquireWrite() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer != null || !readers.isEmpty()) {
+	    if (writer == null && waitingWriters == 0)
+		donateToReader();
+
+	    waitingWriters++;
+	    writeQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+	else {
+	    writeQueue.acquire(thread);
+	    writer = thread;
+	}
+
+	Lib.assertTrue(writer == thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock from exclusive mode, allowing other
+     * threads to acquire it.
+     */
+    public void releaseWrite() {
+	Lib.assertTrue(isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	writer = null;
+
+	if (waitingWriters > 0)
+	    wakeWriter();
+	else if (waitingReaders > 0)
+	    wakeReaders();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds this lock in exclusive mode.
+     *
+     * @return	true if the current thread is the writer holding this lock.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+	return (writer == KThread.currentThread());
+    }
+
+    /**
+     * Test if the current thread holds this lock in either mode.
+     *
+     * @return	true if the current thread is a reader or the writer.
+     */
+    public boolean isHeldByCurrentThread() {
+	return isWriteHeldByCurrentThread() ||
+	    readers.contains(KThread.currentThread());
+    }
+
+    private void wakeWriter() {
+	writer = writeQueue.nextThread();
+	Lib.assertTrue(writer != null);
+
+	waitingWriters--;
+	writer.ready();
+    }
+
+    private void wakeReaders() {
+	KThread thread;
+	while ((thread = readQueue.nextThread()) != null) {
+	    waitingReaders--;
+	    readers.add(thread);
+	    thread.ready();
+	}
+    }
+
+    /**
+     * Make the newest reader the owner of the writer queue, so that waiting
+     * writers donate their priority to it. Must be called while no writer is
+     * waiting, since a queue may only be acquired directly while it is empty.
+     */
+    private void donateToReader() {
+	writeQueue.acquire(readers.getLast());
+    }
+
+    private static class RWTest implements Runnable {
+	RWTest(RWLock lock, int[] shared, boolean writing, Semaphore done) {
+	    this.lock = lock;
+	    this.shared = shared;
+	    this.writing = writing;
+	    this.done = done;
+	}
+
+	public void run() {
+	    for (int i=0; i<5; i++) {
+		if (writing) {
+		    lock.acquireWrite();
+		    int value = shared[0];
+		    KThread.yield();
+		    shared[0] = value + 1;
+		    lock.releaseWrite();
+		}
+		else {
+		    lock.acquireRead();
+		    int value = shared[0];
+		    KThread.yield();
+		    Lib.assertTrue(shared[0] == value);
+		    lock.releaseRead();
+		}
+		KThread.yield();
+	    }
+	    done.V();
+	}
+
+	private RWLock lock;
+	private int[] shared;
+	private boolean writing;
+	private Semaphore done;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	RWLock lock = new RWLock();
+	int[] shared = new int[] { 0 };
+	Semaphore done = new Semaphore(0);
+
+	for (int i=0; i<4; i++) {
+	    new KThread(new RWTest(lock, shared, i%2 == 0, done))
+		.setName("rwlock test " + i).fork();
+	}
+	for (int i=0; i<4; i++)
+	    done.P();
+
+	Lib.assertTrue(shared[0] == 10);
+    }
+
+    private KThread writer = null;
+    private LinkedList<KThread> readers = new LinkedList<KThread>();
+    private int waitingReaders = 0;
+    private int waitingWriters = 0;
+
+    private ThreadQueue readQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+    private ThreadQueue writeQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+}
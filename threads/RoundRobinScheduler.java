@@ -2,12 +2,13 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
+import java.util.LinkedHashSet;
 import java.util.Iterator;
 
 /**
  * A round-robin scheduler tracks waiting threads in FIFO queues, implemented
- * with linked lists. When a thread begins waiting for access, it is appended
+ * with linked hash sets, so that a thread can also leave from the middle of
+ * a queue. When a thread begins waiting for access, it is appended
  * to the end of a list. The next thread to receive access is always the first
  * thread in the list. This causes access to be given on a first-come
  * first-serve basis.
@@ -55,7 +56,10 @@ public class RoundRobinScheduler extends Scheduler {
 	    if (waitQueue.isEmpty())
 		return null;
 
-	    return (KThread) waitQueue.removeFirst();
+	    Iterator<KThread> first = waitQueue.iterator();
+	    KThread thread = first.next();
+	    first.remove();
+	    return thread;
 	}
 
 	/**
@@ -69,6 +73,18 @@ public class RoundRobinScheduler extends Scheduler {
 	    Lib.assertTrue(waitQueue.isEmpty());
 	}
 
+	/**
+	 * Remove a thread from wherever it is in the queue.
+	 *
+	 * @param	thread	the thread to remove.
+	 * @return	<tt>true</tt> if it was in the queue.
+	 */
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    return waitQueue.remove(thread);
+	}
+
 	/**
 	 * Print out the contents of the queue.
 	 */
@@ -79,6 +95,6 @@ public class RoundRobinScheduler extends Scheduler {
 		System.out.print((KThread) i.next() + " ");
 	}
 
-	private LinkedList<KThread> waitQueue = new LinkedList<KThread>();
+	private LinkedHashSet<KThread> waitQueue = new LinkedHashSet<KThread>();
     }
 }
@@ -20,6 +20,12 @@ import nachos.machine.*;
  * because by the time you get the value, a context switch might have occurred,
  * and some other thread might have called <tt>P()</tt> or <tt>V()</tt>, so the
  * true value might now be different.
+ *
+ * <p>
+ * <tt>P(timeout)</tt> gives up if the semaphore stays zero for too long.
+ * Threads waiting with a timeout queue with the others, and are woken by
+ * <tt>V()</tt> in the same order; one that times out leaves the queue (see
+ * <tt>TimedWaiters</tt>).
  */
 public class Semaphore {
     /**
@@ -28,7 +34,33 @@ public class Semaphore {
      * @param	initialValue	the initial value of this semaphore.
      */
     public Semaphore(int initialValue) {
+	this(initialValue, (String) null);
+    }
+
+    /**
+     * Allocate a new named semaphore. The name identifies the semaphore in
+     * the contention profile.
+     *
+     * @param	initialValue	the initial value of this semaphore.
+     * @param	name		the name of this semaphore.
+     *
+     * @see	nachos.threads.ContentionProfiler
+     */
+    public Semaphore(int initialValue, String name) {
+	this(initialValue, ContentionProfiler.register("Semaphore", name));
+    }
+
+    /**
+     * Allocate a new semaphore that updates the given profile record, or is
+     * not profiled at all if it is <tt>null</tt>. Used by primitives built on
+     * short-lived semaphores, which profile themselves instead.
+     *
+     * @param	initialValue	the initial value of this semaphore.
+     * @param	profile		the record to update, or <tt>null</tt>.
+     */
+    Semaphore(int initialValue, ContentionProfiler.Record profile) {
 	value = initialValue;
+	this.profile = profile;
     }
 
     /**
@@ -36,6 +68,8 @@ public class Semaphore {
      */
     public void P() {
 	boolean intStatus = Machine.interrupt().disable();
+	long waitStart = (profile != null) ? profile.waiting() : 0;
+	boolean contended = (value == 0);
 
 	if (value == 0) {
 	    waitQueue.waitForAccess(KThread.currentThread());
@@ -45,7 +79,50 @@ public class Semaphore {
 	    value--;
 	}
 
+	if (profile != null)
+	    profile.acquired(waitStart, contended);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically wait for this semaphore to become non-zero and decrement it,
+     * giving up if that has not happened within <i>timeout</i> ticks.
+     *
+     * @param	timeout	the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the semaphore was decremented, or
+     *		<tt>false</tt> if the wait timed out.
+     */
+    public boolean P(long timeout) {
+	boolean intStatus = Machine.interrupt().disable();
+	long waitStart = (profile != null) ? profile.waiting() : 0;
+	boolean contended = (value == 0);
+	boolean acquired;
+
+	if (value > 0) {
+	    value--;
+	    acquired = true;
+	}
+	else if (timeout <= 0) {
+	    acquired = false;
+	}
+	else {
+	    if (timedWaiters == null)
+		timedWaiters = new TimedWaiters(waitQueue);
+
+	    KThread thread = KThread.currentThread();
+	    waitQueue.waitForAccess(thread);
+	    Alarm.WaitThread timer = timedWaiters.schedule(thread, timeout);
+	    KThread.sleep();
+
+	    acquired = !timer.isExpired();
+	}
+
+	if (profile != null && acquired)
+	    profile.acquired(waitStart, contended);
+
 	Machine.interrupt().restore(intStatus);
+	return acquired;
     }
 
     /**
@@ -55,13 +132,16 @@ public class Semaphore {
     public void V() {
 	boolean intStatus = Machine.interrupt().disable();
 
-	KThread thread = waitQueue.nextThread();
-	if (thread != null) {
+	KThread thread;
+	if (timedWaiters != null)
+	    thread = timedWaiters.nextThread();
+	else
+	    thread = waitQueue.nextThread();
+
+	if (thread != null)
 	    thread.ready();
-	}
-	else {
+	else
 	    value++;
-	}
 	
 	Machine.interrupt().restore(intStatus);
     }
@@ -83,6 +163,21 @@ public class Semaphore {
 	private Semaphore pong;
     }
 
+    private static class DelayedV implements Runnable {
+	DelayedV(Semaphore semaphore, long delay) {
+	    this.semaphore = semaphore;
+	    this.delay = delay;
+	}
+
+	public void run() {
+	    ThreadedKernel.alarm.waitUntil(delay);
+	    semaphore.V();
+	}
+
+	private Semaphore semaphore;
+	private long delay;
+    }
+
     /**
      * Test if this module is working.
      */
@@ -96,9 +191,24 @@ public class Semaphore {
 	    ping.V();
 	    pong.P();
 	}
+
+	// a wait that times out, one woken early, then an untimed one, which
+	// must not find the expired waiter still queued
+	Lib.assertTrue(!pong.P(1000));
+
+	new KThread(new DelayedV(pong, 500)).setName("early V").fork();
+	long start = Machine.timer().getTime();
+	Lib.assertTrue(pong.P(100000));
+	Lib.assertTrue(Machine.timer().getTime() - start < 100000);
+
+	new KThread(new DelayedV(pong, 500)).setName("late V").fork();
+	pong.P();
     }
 
     private int value;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(false);
+    /** Created by the first <tt>P(timeout)</tt> that has to wait. */
+    private TimedWaiters timedWaiters = null;
+    private ContentionProfiler.Record profile;
 }
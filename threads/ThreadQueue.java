@@ -91,6 +91,17 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Take a thread that is waiting for access back out of this queue,
+     * because it has stopped waiting (e.g. its wait for a lock timed out).
+     * The thread no longer waits for access, and no longer donates priority
+     * to the thread that has access.
+     *
+     * @param	thread	the thread that has stopped waiting.
+     * @return	<tt>true</tt> if the thread was waiting in this queue.
+     */
+    public abstract boolean remove(KThread thread);
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
@@ -41,14 +41,16 @@ public class ThreadedKernel extends Kernel {
 
     /**
      * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
-     * autograder never calls this method, so it is safe to put additional
-     * tests here.
+     * <tt>SynchList</tt>, <tt>BoundedSynchList</tt>, <tt>RWLock</tt>, and
+     * <tt>ElevatorBank</tt> classes. Note that the autograder never calls this
+     * method, so it is safe to put additional tests here.
      */	
     public void selfTest() {
 	KThread.selfTest();
 	Semaphore.selfTest();
 	SynchList.selfTest();
+	BoundedSynchList.selfTest();
+	RWLock.selfTest();
 	Alarm.selfTest();
 	//ReactWater.selfTest(); 
 	if (Machine.bank() != null) {
@@ -67,6 +69,7 @@ public class ThreadedKernel extends Kernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	ContentionProfiler.print();
 	Machine.halt();
     }
 
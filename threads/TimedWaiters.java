@@ -0,0 +1,75 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+
+/**
+ * The timers of threads waiting with a time limit in the <tt>ThreadQueue</tt>
+ * of a <tt>Lock</tt> or <tt>Semaphore</tt>.
+ *
+ * <p>
+ * A timed waiter queues like any other thread, so it is handed the
+ * primitive in the queue's order, and donates priority while it waits. When
+ * its timer expires it is taken back out of the queue, so it stops donating
+ * and leaves nothing behind for the next hand-off. Whoever hands the
+ * primitive to a timed waiter cancels its timer. Every method must be called
+ * with interrupts disabled.
+ */
+class TimedWaiters {
+    /**
+     * Allocate the timers for a wait queue.
+     *
+     * @param	waitQueue	the primitive's wait queue.
+     */
+    TimedWaiters(ThreadQueue waitQueue) {
+	this.waitQueue = waitQueue;
+    }
+
+    /**
+     * Start the timer of a thread that has just been put in the wait queue.
+     * When the timer expires the thread is taken out of the queue and made
+     * ready.
+     *
+     * @param	thread	the waiting thread.
+     * @param	timeout	the maximum number of clock ticks to wait.
+     * @return	the timer, which tells the thread whether it timed out.
+     */
+    Alarm.WaitThread schedule(KThread thread, long timeout) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Alarm.WaitThread timer = new Alarm.WaitThread(thread) {
+		protected void timeout() {
+		    pending.remove(getWaitThread());
+		    waitQueue.remove(getWaitThread());
+		}
+	    };
+
+	pending.put(thread, timer);
+	ThreadedKernel.alarm.schedule(timer, timeout);
+	return timer;
+    }
+
+    /**
+     * Take the next thread off the wait queue, and cancel its timer if it
+     * has one.
+     *
+     * @return	the thread, or <tt>null</tt> if no thread is waiting.
+     */
+    KThread nextThread() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	KThread thread = waitQueue.nextThread();
+	if (thread != null) {
+	    Alarm.WaitThread timer = pending.remove(thread);
+	    if (timer != null)
+		ThreadedKernel.alarm.cancel(timer);
+	}
+	return thread;
+    }
+
+    private ThreadQueue waitQueue;
+    /** The timer of each timed waiter still in the queue. */
+    private HashMap<KThread, Alarm.WaitThread> pending =
+	new HashMap<KThread, Alarm.WaitThread>();
+}
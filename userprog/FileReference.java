@@ -2,6 +2,7 @@ package nachos.userprog;
 
 /** This class is a reference to a file used to keep track of open files and their references. Contains the file name,
   * number of references to the file, and a boolean indicating whether or not the file is marked for unlinking.
+  * Entries live in UserKernel.globalFileTable and are only changed while holding UserKernel.globalFileLock.
   */
 public class FileReference{
 
@@ -21,9 +22,9 @@ private boolean unlinking;
 		++numReferences;
 	}
 
-	//Remove reference
-	public void removeReference(){
-		--numReferences;
+	//Remove reference, returns the number left
+	public int removeReference(){
+		return --numReferences;
 	}
 
 	//Get number of references
@@ -0,0 +1,235 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A bounded pool of file handles on the underlying file system, shared by
+ * every user process.
+ *
+ * <p>
+ * Each file that is open anywhere is identified by its <tt>FileReference</tt>
+ * in <tt>UserKernel.globalFileTable</tt>. However many descriptors refer to a
+ * file, they share at most one handle from the pool, and each descriptor keeps
+ * its own file position. When more files are open than the pool holds, the
+ * least recently used handle that is not in the middle of a transfer is
+ * closed, and it is reopened the next time one of its descriptors is used. So
+ * user processes can keep many more files open than the file system allows
+ * (the stub file system allows 16).
+ *
+ * <p>
+ * The pool size is read from the <tt>nachos.conf</tt> key
+ * <tt>UserKernel.maxHostFiles</tt>.
+ */
+public class HostFilePool {
+    /**
+     * Allocate a new pool.
+     *
+     * @param	capacity	the maximum number of handles to keep open.
+     */
+    public HostFilePool(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	this.capacity = capacity;
+    }
+
+    /**
+     * Open a new descriptor on the specified file.
+     *
+     * @param	fileRef		the file's entry in the global file table.
+     * @param	truncate	if <tt>true</tt>, create the file if it does not
+     *				exist and truncate it to length 0.
+     * @return	the new descriptor, or <tt>null</tt> if the file could not be
+     *		opened.
+     */
+    public OpenFile open(FileReference fileRef, boolean truncate) {
+	lock.acquire();
+
+	Handle handle = handles.get(fileRef);
+	if (handle == null || truncate) {
+	    OpenFile file = openHost(fileRef.getName(), truncate);
+	    if (file == null) {
+		lock.release();
+		return null;
+	    }
+
+	    if (handle == null)
+		addHandle(fileRef, file);
+	    else
+		file.close();	// the pooled handle sees the truncation
+	}
+
+	lock.release();
+
+	return new Descriptor(fileRef);
+    }
+
+    /**
+     * Close the handle for the specified file, if there is one. Must be
+     * called once the last descriptor for the file is closed, and before the
+     * file is removed.
+     *
+     * @param	fileRef	the file's entry in the global file table.
+     */
+    public void discard(FileReference fileRef) {
+	lock.acquire();
+
+	Handle handle = handles.remove(fileRef);
+	if (handle != null) {
+	    handle.discarded = true;
+	    if (handle.users == 0)
+		handle.file.close();
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Return the handle for the specified file, reopening it if it was
+     * closed, and keep it from being closed until <tt>unpin()</tt>.
+     */
+    private Handle pin(FileReference fileRef) {
+	lock.acquire();
+
+	Handle handle = handles.get(fileRef);
+	if (handle == null) {
+	    OpenFile file = openHost(fileRef.getName(), false);
+	    if (file != null)
+		handle = addHandle(fileRef, file);
+	}
+	if (handle != null)
+	    handle.users++;
+
+	lock.release();
+
+	return handle;
+    }
+
+    private void unpin(Handle handle) {
+	lock.acquire();
+
+	handle.users--;
+	if (handle.users == 0) {
+	    if (handle.discarded)
+		handle.file.close();
+	    else
+		evict(capacity);
+	}
+
+	lock.release();
+    }
+
+    private Handle addHandle(FileReference fileRef, OpenFile file) {
+	Handle handle = new Handle(file);
+	handles.put(fileRef, handle);
+	evict(capacity);
+	return handle;
+    }
+
+    /**
+     * Open a file on the file system. If that fails, the file system may be
+     * out of handles, so close our least recently used one and try once more.
+     */
+    private OpenFile openHost(String name, boolean truncate) {
+	OpenFile file = UserKernel.fileSystem.open(name, truncate);
+	if (file == null && evict(handles.size() - 1))
+	    file = UserKernel.fileSystem.open(name, truncate);
+
+	return file;
+    }
+
+    /**
+     * Close unpinned handles, least recently used first, until at most
+     * <i>max</i> are open.
+     *
+     * @return	<tt>true</tt> if any handle was closed.
+     */
+    private boolean evict(int max) {
+	boolean evicted = false;
+
+	Iterator<Handle> i = handles.values().iterator();
+	while (handles.size() > max && i.hasNext()) {
+	    Handle handle = i.next();
+	    if (handle.users == 0) {
+		Lib.debug(dbgPool, "closing idle host file "
+			  + handle.file.getName());
+		handle.file.close();
+		i.remove();
+		evicted = true;
+	    }
+	}
+
+	return evicted;
+    }
+
+    private static class Handle {
+	Handle(OpenFile file) {
+	    this.file = file;
+	}
+
+	OpenFile file;
+	int users = 0;
+	boolean discarded = false;
+    }
+
+    /**
+     * A descriptor on a pooled file. The file position belongs to the
+     * descriptor; the handle is only borrowed for the length of a transfer.
+     */
+    private class Descriptor extends OpenFileWithPosition {
+	Descriptor(FileReference fileRef) {
+	    super(UserKernel.fileSystem, fileRef.getName());
+
+	    this.fileRef = fileRef;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    Handle handle = open ? pin(fileRef) : null;
+	    if (handle == null)
+		return -1;
+
+	    int amount = handle.file.read(pos, buf, offset, length);
+	    unpin(handle);
+	    return amount;
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    Handle handle = open ? pin(fileRef) : null;
+	    if (handle == null)
+		return -1;
+
+	    int amount = handle.file.write(pos, buf, offset, length);
+	    unpin(handle);
+	    return amount;
+	}
+
+	public int length() {
+	    Handle handle = open ? pin(fileRef) : null;
+	    if (handle == null)
+		return -1;
+
+	    int length = handle.file.length();
+	    unpin(handle);
+	    return length;
+	}
+
+	public void close() {
+	    open = false;
+	}
+
+	private FileReference fileRef;
+	private boolean open = true;
+    }
+
+    private int capacity;
+    private Lock lock = new Lock("HostFilePool.lock");
+
+    /** Open handles, least recently used first. */
+    private LinkedHashMap<FileReference, Handle> handles =
+	new LinkedHashMap<FileReference, Handle>(16, 0.75f, true);
+
+    private static final char dbgPool = 'f';
+}
@@ -0,0 +1,288 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A kernel-wide cache of executables that have already been loaded, so that
+ * running one again does not open, parse or read the file.
+ *
+ * <p>
+ * The first time a small enough program is run, its sections are loaded
+ * into a frozen template (<tt>Image</tt>): its read-only pages come from the
+ * <tt>SectionCache</tt>, and each page of its initialized writable sections
+ * is read into a page of its own, which only the template maps. A process
+ * that runs the program gets a new reference to every page of the template:
+ * the read-only pages are shared as usual, and the writable ones are shared
+ * copy-on-write, so that the first write gives the process its own copy.
+ * The bss, stack and argument pages start out empty and need no template.
+ *
+ * <p>
+ * At most <tt>maxImages</tt> templates are kept; the one used least
+ * recently is dropped to make room. Like the section cache, templates are
+ * dropped whenever a user process opens, creates or unlinks a file of the
+ * same name (<tt>invalidate()</tt>), and all of them when memory runs out
+ * (<tt>reclaim()</tt>). Processes already running from a template keep its
+ * pages until they exit.
+ */
+public class ImageCache {
+    /**
+     * Allocate a new, empty image cache.
+     *
+     * @param	maxImages	the most templates to keep.
+     * @param	maxPages	the most loaded pages a template may have.
+     */
+    public ImageCache(int maxImages, int maxPages) {
+	this.maxImages = maxImages;
+	this.maxPages = maxPages;
+    }
+
+    /**
+     * Return the template of an executable, adding a reference to each of
+     * its pages for the caller.
+     *
+     * @param	name	the name of the executable.
+     * @return	the template, or <tt>null</tt> if it is not cached.
+     */
+    public Image acquire(String name) {
+	lock.acquire();
+
+	// a LinkedHashMap in access order, so this also marks it recently used
+	Image image = images.get(name);
+	if (image != null) {
+	    reference(image);
+	    numCloned++;
+	}
+
+	lock.release();
+
+	if (image != null)
+	    Lib.debug(dbgCache, "cloning the image of " + name);
+	return image;
+    }
+
+    /**
+     * Build the template of an executable from its parsed sections, cache
+     * it, and add a reference to each of its pages for the caller.
+     *
+     * @param	name	the name of the executable.
+     * @param	length	the length of the executable, in bytes.
+     * @param	coff	the executable, whose sections start at page 0 and
+     *			are contiguous.
+     * @param	file	the file <i>coff</i> was parsed from.
+     * @return	the template, or <tt>null</tt> if the program has too many
+     *		pages to cache or there is not enough free memory.
+     */
+    public Image create(String name, int length, Coff coff,
+			ReadAheadFile file) {
+	if (maxImages == 0)
+	    return null;
+
+	int numPages = 0, numLoaded = 0;
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    numPages += section.getLength();
+	    if (section.isReadOnly() || section.isInitialzed())
+		numLoaded += section.getLength();
+	}
+	if (numLoaded > maxPages)
+	    return null;
+
+	lock.acquire();
+
+	Image image = new Image(length, coff.getEntryPoint(), numPages);
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    if (!section.isReadOnly() && !section.isInitialzed())
+		continue;
+
+	    for (int i=0; i<section.getLength(); i++) {
+		int vpn = section.getFirstVPN() + i;
+		int ppn;
+		if (section.isReadOnly()) {
+		    ppn = UserKernel.sectionCache.acquire(name, length, s,
+							  section, i, file);
+		}
+		else {
+		    int[] ppns = UserKernel.allocatePages(1);
+		    ppn = (ppns == null) ? -1 : ppns[0];
+		    if (ppn != -1)
+			file.loadPage(s, section, i, ppn);
+		}
+
+		if (ppn == -1) {
+		    release(image);
+		    lock.release();
+		    Lib.debug(dbgCache, "no memory for the image of " + name);
+		    return null;
+		}
+
+		image.ppns[vpn] = ppn;
+		image.readOnly[vpn] = section.isReadOnly();
+	    }
+	}
+
+	Image old = images.remove(name);
+	if (old != null)
+	    release(old);
+
+	if (images.size() == maxImages) {
+	    Iterator<Image> eldest = images.values().iterator();
+	    release(eldest.next());
+	    eldest.remove();
+	}
+
+	images.put(name, image);
+	reference(image);
+	numCreated++;
+
+	lock.release();
+
+	Lib.debug(dbgCache, "cached the image of " + name + " (" + numLoaded
+		  + " pages)");
+	return image;
+    }
+
+    /**
+     * Drop the template of the named executable, so that the next process to
+     * run it loads it from the file again.
+     *
+     * @param	name	the file name.
+     */
+    public void invalidate(String name) {
+	lock.acquire();
+
+	Image image = images.remove(name);
+	if (image != null)
+	    release(image);
+
+	lock.release();
+    }
+
+    /**
+     * Drop every template. Pages no process is using are freed, and the
+     * read-only ones become unused in the section cache.
+     *
+     * @return	the number of pages freed.
+     */
+    public int reclaim() {
+	lock.acquire();
+
+	int freed = 0;
+	for (Image image : images.values())
+	    freed += release(image);
+	images.clear();
+
+	lock.release();
+
+	if (freed > 0)
+	    Lib.debug(dbgCache, "reclaimed " + freed + " image pages");
+	return freed;
+    }
+
+    /**
+     * Return a line of statistics for <tt>VMKernel.terminate()</tt>.
+     */
+    public String toString() {
+	return numCreated + " built, " + numCloned + " cloned";
+    }
+
+    private void reference(Image image) {
+	for (int vpn=0; vpn<image.ppns.length; vpn++) {
+	    int ppn = image.ppns[vpn];
+	    if (ppn == -1)
+		continue;
+
+	    if (image.readOnly[vpn])
+		UserKernel.sectionCache.reference(ppn);
+	    else
+		UserKernel.sharePage(ppn);
+	}
+    }
+
+    /**
+     * Drop the template's own mapping of each of its pages.
+     *
+     * @return	the number of pages freed.
+     */
+    private int release(Image image) {
+	int freed = 0;
+
+	for (int vpn=0; vpn<image.ppns.length; vpn++) {
+	    int ppn = image.ppns[vpn];
+	    if (ppn == -1)
+		continue;
+
+	    if (image.readOnly[vpn])
+		UserKernel.sectionCache.release(ppn);
+	    else if (UserKernel.unsharePage(ppn))
+		freed++;
+	}
+
+	return freed;
+    }
+
+    /**
+     * The frozen template of an executable. Its pages never change: they
+     * are only mapped read-only, or copy-on-write.
+     */
+    public static class Image {
+	Image(int length, int entryPoint, int numPages) {
+	    this.length = length;
+	    this.entryPoint = entryPoint;
+
+	    ppns = new int[numPages];
+	    readOnly = new boolean[numPages];
+	    for (int vpn=0; vpn<numPages; vpn++)
+		ppns[vpn] = -1;
+	}
+
+	/** Return the length of the executable, in bytes. */
+	public int getLength() {
+	    return length;
+	}
+
+	/** Return the program's entry point. */
+	public int getEntryPoint() {
+	    return entryPoint;
+	}
+
+	/** Return the number of pages in the program's sections. */
+	public int getNumPages() {
+	    return ppns.length;
+	}
+
+	/**
+	 * Return the physical page holding a page of the program, or -1 for
+	 * a bss page, which starts out as zeros.
+	 */
+	public int getPPN(int vpn) {
+	    return ppns[vpn];
+	}
+
+	/**
+	 * Test whether a page belongs to a read-only section. The other pages
+	 * the template holds must be mapped copy-on-write.
+	 */
+	public boolean isReadOnly(int vpn) {
+	    return readOnly[vpn];
+	}
+
+	private int length;
+	private int entryPoint;
+	private int[] ppns;
+	private boolean[] readOnly;
+    }
+
+    private int maxImages, maxPages;
+    private int numCreated = 0, numCloned = 0;
+
+    private Lock lock = new Lock("ImageCache.lock");
+    private LinkedHashMap<String, Image> images =
+	new LinkedHashMap<String, Image>(16, 0.75f, true);
+
+    private static final char dbgCache = 'a';
+}
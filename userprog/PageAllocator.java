@@ -0,0 +1,245 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * A buddy allocator for physical pages.
+ *
+ * <p>
+ * Free memory is kept as blocks of <tt>2<sup>k</sup></tt> pages, each
+ * aligned to its own size, on one free list per order <i>k</i>. The lists are
+ * threaded through <tt>int</tt> arrays indexed by page number, so nothing is
+ * allocated or boxed after construction. A <tt>long[]</tt> bitmap records
+ * which individual pages are free.
+ *
+ * <p>
+ * A single page comes straight off the order-0 list when it is non-empty,
+ * and otherwise by splitting the smallest larger block. A run of <i>n</i>
+ * contiguous pages is cut from a block of the next power of two, and the
+ * unused tail goes back on the free lists. Freed pages are merged with their
+ * buddies as far up as possible.
+ *
+ * <p>
+ * This class is not synchronized; <tt>UserKernel</tt> guards it with
+ * <tt>pageListLock</tt>.
+ */
+public class PageAllocator {
+    /**
+     * Allocate a new allocator managing pages <tt>0</tt> through
+     * <tt>numPages-1</tt>, all of which are initially free.
+     *
+     * @param	numPages	the number of physical pages.
+     */
+    public PageAllocator(int numPages) {
+	this.numPages = numPages;
+
+	int maxOrder = 0;
+	while ((1 << (maxOrder+1)) <= numPages)
+	    maxOrder++;
+
+	freeHead = new int[maxOrder+1];
+	for (int k=0; k<=maxOrder; k++)
+	    freeHead[k] = -1;
+
+	next = new int[numPages];
+	prev = new int[numPages];
+	blockOrder = new byte[numPages];
+	freeMap = new long[(numPages + 63) / 64];
+
+	// carve the pages into the largest aligned blocks that fit
+	int ppn = 0;
+	while (ppn < numPages) {
+	    int k = maxOrder;
+	    while ((ppn & ((1 << k) - 1)) != 0 || ppn + (1 << k) > numPages)
+		k--;
+	    freeBlock(ppn, k);
+	    ppn += 1 << k;
+	}
+    }
+
+    /**
+     * Return the number of free pages.
+     *
+     * @return	the number of free pages.
+     */
+    public int getNumFreePages() {
+	return numFree;
+    }
+
+    /**
+     * Test whether the specified page is free.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if the page is free.
+     */
+    public boolean isFree(int ppn) {
+	return (freeMap[ppn >> 6] & (1L << ppn)) != 0;
+    }
+
+    /**
+     * Allocate a single page.
+     *
+     * @return	the physical page number, or -1 if no page is free.
+     */
+    public int allocate() {
+	return allocateBlock(0);
+    }
+
+    /**
+     * Allocate <i>num</i> pages, not necessarily contiguous.
+     *
+     * @param	num	the number of pages to allocate.
+     * @return	the allocated physical page numbers, or <tt>null</tt> if
+     *		fewer than <i>num</i> pages are free.
+     */
+    public int[] allocate(int num) {
+	if (num > numFree)
+	    return null;
+
+	int[] result = new int[num];
+	for (int i=0; i<num; i++)
+	    result[i] = allocateBlock(0);
+
+	return result;
+    }
+
+    /**
+     * Allocate <i>num</i> physically contiguous pages.
+     *
+     * @param	num	the number of pages to allocate.
+     * @return	the first physical page number of the run, or -1 if there is
+     *		no free run that long.
+     */
+    public int allocateContiguous(int num) {
+	Lib.assertTrue(num > 0);
+
+	int k = 0;
+	while ((1 << k) < num)
+	    k++;
+	if (k >= freeHead.length)
+	    return -1;
+
+	int first = allocateBlock(k);
+	if (first == -1)
+	    return -1;
+
+	// give back the tail of the block we did not need
+	int ppn = first + num;
+	int end = first + (1 << k);
+	while (ppn < end) {
+	    int j = 0;
+	    while ((ppn & ((2 << j) - 1)) == 0 && ppn + (2 << j) <= end)
+		j++;
+	    release(ppn, j);
+	    ppn += 1 << j;
+	}
+
+	return first;
+    }
+
+    /**
+     * Free a single page.
+     *
+     * @param	ppn	the physical page number.
+     */
+    public void free(int ppn) {
+	release(ppn, 0);
+    }
+
+    /**
+     * Free every page in <i>ppns</i>. Entries that are -1 are skipped.
+     *
+     * @param	ppns	the physical page numbers to free.
+     */
+    public void free(int[] ppns) {
+	for (int i=0; i<ppns.length; i++) {
+	    if (ppns[i] != -1)
+		release(ppns[i], 0);
+	}
+    }
+
+    private int allocateBlock(int k) {
+	int j = k;
+	while (j < freeHead.length && freeHead[j] == -1)
+	    j++;
+	if (j == freeHead.length)
+	    return -1;
+
+	int ppn = freeHead[j];
+	unlink(ppn, j);
+	setFree(ppn, 1 << j, false);
+
+	// split until the block is the size we want, freeing the upper halves
+	while (j > k) {
+	    j--;
+	    freeBlock(ppn + (1 << j), j);
+	}
+
+	return ppn;
+    }
+
+    private void release(int ppn, int k) {
+	Lib.assertTrue(ppn >= 0 && ppn + (1 << k) <= numPages);
+	for (int i=0; i<(1 << k); i++)
+	    Lib.assertTrue(!isFree(ppn+i));
+
+	// merge with the buddy for as long as it is a free block of equal size
+	while (k+1 < freeHead.length) {
+	    int buddy = ppn ^ (1 << k);
+	    if (buddy + (1 << k) > numPages || !isFree(buddy) ||
+		blockOrder[buddy] != k + 1)
+		break;
+
+	    unlink(buddy, k);
+	    setFree(buddy, 1 << k, false);
+	    ppn = Math.min(ppn, buddy);
+	    k++;
+	}
+
+	freeBlock(ppn, k);
+    }
+
+    private void freeBlock(int ppn, int k) {
+	blockOrder[ppn] = (byte) (k + 1);
+	prev[ppn] = -1;
+	next[ppn] = freeHead[k];
+	if (freeHead[k] != -1)
+	    prev[freeHead[k]] = ppn;
+	freeHead[k] = ppn;
+
+	setFree(ppn, 1 << k, true);
+    }
+
+    private void unlink(int ppn, int k) {
+	if (prev[ppn] != -1)
+	    next[prev[ppn]] = next[ppn];
+	else
+	    freeHead[k] = next[ppn];
+	if (next[ppn] != -1)
+	    prev[next[ppn]] = prev[ppn];
+
+	blockOrder[ppn] = 0;
+    }
+
+    private void setFree(int ppn, int count, boolean free) {
+	for (int i=ppn; i<ppn+count; i++) {
+	    if (free)
+		freeMap[i >> 6] |= 1L << i;
+	    else
+		freeMap[i >> 6] &= ~(1L << i);
+	}
+	numFree += free ? count : -count;
+    }
+
+    private int numPages;
+    private int numFree = 0;
+
+    /** The first page of the first free block of each order, or -1. */
+    private int[] freeHead;
+    /** Free-list links, valid only for the first page of a free block. */
+    private int[] next, prev;
+    /** One more than the order of the free block starting here, or 0. */
+    private byte[] blockOrder;
+    /** One bit per page, set if the page is free. */
+    private long[] freeMap;
+}
@@ -0,0 +1,159 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * An executable being loaded, which reads each section it loads in one
+ * transfer instead of one transfer per page.
+ *
+ * <p>
+ * <tt>CoffSection.loadPage()</tt> reads one page at a time, and on the stub
+ * file system every read is a separate simulated disk access. While the
+ * kernel loads a program, it loads pages through <tt>loadPage()</tt> here
+ * instead: the first page loaded from a section reads that page and the rest
+ * of the section in one access, and later pages of the section are copied
+ * out of that buffer. Pages of other sections, and pages loaded after
+ * <tt>endLoad()</tt>, such as those brought in by page faults, are not read
+ * ahead.
+ *
+ * <p>
+ * <tt>Coff</tt> does not say where a section's contents are in the file, so
+ * the headers it reads while parsing the executable are kept, and the
+ * section's header is found among them. If it is not there, or does not
+ * describe the section, pages are loaded by <tt>CoffSection</tt> as usual.
+ */
+public class ReadAheadFile extends OpenFile {
+    /**
+     * Wrap an open executable, before it is parsed.
+     *
+     * @param	file	the executable.
+     */
+    public ReadAheadFile(OpenFile file) {
+	super(file.getFileSystem(), file.getName());
+
+	this.file = file;
+    }
+
+    /**
+     * Load a page of a section into physical memory, like
+     * <tt>CoffSection.loadPage()</tt>.
+     *
+     * @param	s	the section number.
+     * @param	section	the section.
+     * @param	spn	the page number within the section.
+     * @param	ppn	the physical page to load into.
+     */
+    public void loadPage(int s, CoffSection section, int spn, int ppn) {
+	if (!section.isInitialzed() || headers == null) {
+	    section.loadPage(spn, ppn);
+	    return;
+	}
+
+	if (bufferSection != s || spn < bufferFirstPage)
+	    readAhead(s, section, spn);
+
+	if (buffer == null) {
+	    section.loadPage(spn, ppn);
+	    return;
+	}
+
+	byte[] memory = Machine.processor().getMemory();
+	int paddr = ppn*pageSize;
+	int start = (spn - bufferFirstPage)*pageSize;
+	int initlen = Math.min(pageSize, buffer.length - start);
+
+	System.arraycopy(buffer, start, memory, paddr, initlen);
+	Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
+    }
+
+    /**
+     * Drop the buffered section and the headers. Later loads go straight to
+     * <tt>CoffSection</tt>.
+     */
+    public void endLoad() {
+	headers = null;
+	buffer = null;
+	bufferSection = -1;
+    }
+
+    /**
+     * Read section <i>s</i> from page <i>spn</i> to its end into the buffer,
+     * or clear the buffer if the section cannot be found or read.
+     */
+    private void readAhead(int s, CoffSection section, int spn) {
+	buffer = null;
+	bufferSection = s;
+	bufferFirstPage = spn;
+
+	byte[] fileHeader = headers.get(0);
+	if (fileHeader == null || fileHeader.length < fileHeaderLength)
+	    return;
+
+	int optionalHeaderLength = Lib.bytesToUnsignedShort(fileHeader, 16);
+	byte[] header = headers.get(fileHeaderLength + optionalHeaderLength +
+				    s*CoffSection.headerLength);
+	if (header == null || header.length < CoffSection.headerLength)
+	    return;
+
+	int vaddr = Lib.bytesToInt(header, 12);
+	int size = Lib.bytesToInt(header, 16);
+	int contentOffset = Lib.bytesToInt(header, 20);
+	if (vaddr != section.getFirstVPN()*pageSize ||
+	    Lib.divRoundUp(size, pageSize) != section.getLength() ||
+	    contentOffset < 0 || contentOffset + size > file.length())
+	    return;
+
+	int length = size - spn*pageSize;
+	byte[] ahead = new byte[length];
+	if (file.read(contentOffset + spn*pageSize, ahead, 0, length) != length)
+	    return;
+
+	Lib.debug(dbgLoad, "read ahead " + length + " bytes of section " + s
+		  + " of " + getName());
+	buffer = ahead;
+    }
+
+    public int read(int pos, byte[] buf, int offset, int length) {
+	int amount = file.read(pos, buf, offset, length);
+
+	// keep what Coff reads while parsing, to find the section headers
+	if (headers != null && bufferSection == -1 && amount > 0)
+	    headers.put(pos, Arrays.copyOfRange(buf, offset, offset+amount));
+
+	return amount;
+    }
+
+    public int write(int pos, byte[] buf, int offset, int length) {
+	endLoad();
+	return file.write(pos, buf, offset, length);
+    }
+
+    public int length() {
+	return file.length();
+    }
+
+    public void close() {
+	endLoad();
+	file.close();
+    }
+
+    private OpenFile file;
+    /** The bytes read at each position while parsing, or null. */
+    private HashMap<Integer, byte[]> headers = new HashMap<Integer, byte[]>();
+    /** The section buffered, or -1. */
+    private int bufferSection = -1;
+    private int bufferFirstPage;
+    /**
+     * The contents of section <tt>bufferSection</tt>, from page
+     * <tt>bufferFirstPage</tt> to its end, or null.
+     */
+    private byte[] buffer = null;
+
+    /** The length of a COFF file header, which <tt>Coff</tt> keeps private. */
+    private static final int fileHeaderLength = 20;
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgLoad = 'a';
+}
@@ -0,0 +1,256 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+
+/**
+ * A kernel-wide cache of the read-only COFF section pages of executables, so
+ * that processes running the same program share one copy of its text.
+ *
+ * <p>
+ * Pages are identified by the executable's name and length, the section
+ * number, and the page within the section. Each physical page handed out is
+ * reference counted; a process drops its references when it unloads. Pages
+ * nobody references stay cached, so that running the same program again does
+ * not reload them, until <tt>reclaim()</tt> gives them back to the page
+ * allocator. The VM kernel may also take a page from the processes using it
+ * (<tt>evict()</tt>), which then load it again when they next touch it.
+ *
+ * <p>
+ * The underlying file system keeps no modification times, so an executable
+ * is dropped from the cache whenever a user process opens, creates or unlinks
+ * a file of the same name (<tt>invalidate()</tt>). Processes already sharing
+ * its pages keep them until they exit.
+ */
+public class SectionCache {
+    /**
+     * Allocate a new, empty section cache.
+     *
+     * @param	numPhysPages	the number of physical pages in the machine.
+     */
+    public SectionCache(int numPhysPages) {
+	frameImage = new Image[numPhysPages];
+	frameSection = new int[numPhysPages];
+	framePage = new int[numPhysPages];
+	frameRefs = new int[numPhysPages];
+    }
+
+    /**
+     * Return a physical page holding the specified page of a read-only
+     * section, loading it if it is not cached, and add a reference to it.
+     *
+     * @param	name	the name of the executable.
+     * @param	length	the length of the executable, in bytes.
+     * @param	s	the section number.
+     * @param	section	the section.
+     * @param	spn	the page number within the section.
+     * @param	file	the executable being loaded, which reads the section
+     *			ahead, or <tt>null</tt> to load the page on its own.
+     * @return	the physical page number, or -1 if there was no free page.
+     */
+    public int acquire(String name, int length, int s, CoffSection section,
+		       int spn, ReadAheadFile file) {
+	Lib.assertTrue(section.isReadOnly());
+
+	lock.acquire();
+
+	Image image = images.get(name);
+	if (image == null || image.length != length) {
+	    if (image != null)
+		drop(image);
+	    image = new Image(length);
+	    images.put(name, image);
+	}
+
+	int[] pages = image.sectionPages.get(s);
+	if (pages == null) {
+	    pages = new int[section.getLength()];
+	    for (int i=0; i<pages.length; i++)
+		pages[i] = -1;
+	    image.sectionPages.put(s, pages);
+	}
+
+	int ppn = pages[spn];
+	if (ppn == -1) {
+	    ppn = allocatePage();
+	    if (ppn != -1) {
+		if (file != null)
+		    file.loadPage(s, section, spn, ppn);
+		else
+		    section.loadPage(spn, ppn);
+
+		pages[spn] = ppn;
+		frameImage[ppn] = image;
+		frameSection[ppn] = s;
+		framePage[ppn] = spn;
+	    }
+	}
+	else {
+	    Lib.debug(dbgCache, "sharing " + name + " section " + s
+		      + " page " + spn + " (ppn " + ppn + ")");
+	}
+
+	if (ppn != -1)
+	    frameRefs[ppn]++;
+
+	lock.release();
+
+	return ppn;
+    }
+
+    /**
+     * Add another reference to a page returned by <tt>acquire()</tt>, for a
+     * process that inherits the page from its parent.
+     *
+     * @param	ppn	the physical page number.
+     */
+    public void reference(int ppn) {
+	lock.acquire();
+
+	Lib.assertTrue(frameRefs[ppn] > 0);
+	frameRefs[ppn]++;
+
+	lock.release();
+    }
+
+    /**
+     * Drop a reference to a page returned by <tt>acquire()</tt>. The page
+     * stays cached unless its executable was invalidated, in which case it
+     * is freed with its last reference.
+     *
+     * @param	ppn	the physical page number.
+     */
+    public void release(int ppn) {
+	lock.acquire();
+
+	Lib.assertTrue(frameRefs[ppn] > 0);
+	frameRefs[ppn]--;
+	if (frameRefs[ppn] == 0 && frameImage[ppn] == null)
+	    UserKernel.releasePage(ppn);
+
+	lock.release();
+    }
+
+    /**
+     * Take a cached page away from the processes using it, so that the page
+     * can be reused. Called by the VM kernel's clock, which has the
+     * processes fault the page in again later. Only a page that is still
+     * cached, and whose references all belong to those processes, can be
+     * taken; a template in the image cache may hold the others.
+     *
+     * @param	ppn	the physical page number.
+     * @param	refs	the number of processes mapping the page.
+     * @return	<tt>true</tt> if the page is no longer cached and its
+     *		references are dropped, so the caller must free it.
+     */
+    public boolean evict(int ppn, int refs) {
+	lock.acquire();
+
+	boolean evicted = (frameImage[ppn] != null && frameRefs[ppn] == refs);
+	if (evicted) {
+	    forget(ppn);
+	    frameRefs[ppn] = 0;
+	}
+
+	lock.release();
+
+	return evicted;
+    }
+
+    /**
+     * Forget the named executable, so that the next process to run it loads
+     * it from the file again.
+     *
+     * @param	name	the file name.
+     */
+    public void invalidate(String name) {
+	lock.acquire();
+
+	Image image = images.remove(name);
+	if (image != null)
+	    drop(image);
+
+	lock.release();
+    }
+
+    /**
+     * Free every cached page that no process is using.
+     *
+     * @return	the number of pages freed.
+     */
+    public int reclaim() {
+	lock.acquire();
+	int freed = reclaimUnused();
+	lock.release();
+
+	return freed;
+    }
+
+    private int allocatePage() {
+	int[] ppns = UserKernel.allocatePages(1);
+	if (ppns == null && reclaimUnused() > 0)
+	    ppns = UserKernel.allocatePages(1);
+
+	return (ppns == null) ? -1 : ppns[0];
+    }
+
+    private int reclaimUnused() {
+	int freed = 0;
+
+	for (int ppn=0; ppn<frameImage.length; ppn++) {
+	    if (frameImage[ppn] != null && frameRefs[ppn] == 0) {
+		forget(ppn);
+		UserKernel.releasePage(ppn);
+		freed++;
+	    }
+	}
+
+	if (freed > 0)
+	    Lib.debug(dbgCache, "reclaimed " + freed + " cached pages");
+
+	return freed;
+    }
+
+    /**
+     * Detach every page of an image from the cache, freeing the ones nobody
+     * is using. The rest are freed by <tt>release()</tt>.
+     */
+    private void drop(Image image) {
+	for (int ppn=0; ppn<frameImage.length; ppn++) {
+	    if (frameImage[ppn] == image) {
+		forget(ppn);
+		if (frameRefs[ppn] == 0)
+		    UserKernel.releasePage(ppn);
+	    }
+	}
+    }
+
+    private void forget(int ppn) {
+	frameImage[ppn].sectionPages.get(frameSection[ppn])[framePage[ppn]] = -1;
+	frameImage[ppn] = null;
+    }
+
+    private static class Image {
+	Image(int length) {
+	    this.length = length;
+	}
+
+	int length;
+	/** The physical page of each page of each read-only section, or -1. */
+	HashMap<Integer, int[]> sectionPages = new HashMap<Integer, int[]>();
+    }
+
+    private Lock lock = new Lock("SectionCache.lock");
+    private HashMap<String, Image> images = new HashMap<String, Image>();
+
+    /** The image each physical page caches a page of, or <tt>null</tt>. */
+    private Image[] frameImage;
+    private int[] frameSection;
+    private int[] framePage;
+    /** The number of page tables mapping each physical page. */
+    private int[] frameRefs;
+
+    private static final char dbgCache = 'a';
+}
@@ -20,18 +20,28 @@ public class UserKernel extends ThreadedKernel {
      * Initialize this kernel. Creates a synchronized console and sets the
      * processor's exception handler.
      * 
-     * Creates a global linked list of free physical pages (from 0 to numPhysPages)
+     * Creates the allocator for the free physical pages (from 0 to numPhysPages)
      */
     public void initialize(String[] args) {
     	super.initialize(args);
 
     	console = new SynchConsole(Machine.console());
+
+    	globalFileLock = new RWLock();
+    	hostFiles = new HostFilePool(Config.getInteger("UserKernel.maxHostFiles", 8));
 	
-    	pageListLock = new Lock();
-    	freePages = new LinkedList<Integer>();
-    	int physPages = Machine.processor().getNumPhysPages();
-    	for (int i = 0; i < physPages; i++)
-    		freePages.add(i);
+    	pageListLock = new Lock("UserKernel.pageListLock");
+    	freePages = new PageAllocator(Machine.processor().getNumPhysPages());
+    	pageShares = new int[Machine.processor().getNumPhysPages()];
+    	sectionCache = new SectionCache(Machine.processor().getNumPhysPages());
+    	imageCache = new ImageCache(Config.getInteger("UserKernel.maxImages", 4),
+    			Config.getInteger("UserKernel.maxImagePages", Machine.processor().getNumPhysPages()/4));
+    	
+    	zeroedPages = new int[Config.getInteger("UserKernel.zeroedPoolSize",
+    						Machine.processor().getNumPhysPages()/4)];
+    	KThread.setIdleTask(new Runnable() {
+    		public void run() { zeroFreePages(); }
+	    });
 	
     	Machine.processor().setExceptionHandler(new Runnable() {
     		public void run() { exceptionHandler(); }
@@ -118,8 +128,10 @@ public class UserKernel extends ThreadedKernel {
     
     /**
      * NEW METHOD:
-     * Allocates demanded number of pages. Physical pages might not necessarily be contiguous,
-     * since the next method (releasePage) might cause gaps in the freePages linkedList.
+     * Allocates demanded number of pages. A single contiguous run is tried
+     * first, so that large processes get physically contiguous memory when it
+     * is available; otherwise the pages are taken one at a time and might not
+     * be contiguous.
      * 
      * However, in UserProcess.java, the method "load sections" will load contiguous virtual addresses
      * 
@@ -130,15 +142,24 @@ public class UserKernel extends ThreadedKernel {
     public static int[] allocatePages(int num) {
     	pageListLock.acquire();
     
-    	if (freePages.size() < num){
-    		pageListLock.release();
-    		return null;
-    	}
+    	int[] result;
+    	int first = (num > 0) ? freePages.allocateContiguous(num) : -1;
     	
-    	int[] result = new int[num];
+    	if (first != -1) {
+    		result = new int[num];
+    		for(int i = 0; i<num; i++)
+    			result[i] = first + i;
+    	}
+    	else {
+    		result = freePages.allocate(num);
+    	}
     	
-    	for(int i = 0; i<num; i++)
-    		result[i] = freePages.remove();
+    	if (result == null && numZeroed > 0) {
+    		// give the pre-zeroed pages back and try again
+    		while (numZeroed > 0)
+    			freePages.free(zeroedPages[--numZeroed]);
+    		result = freePages.allocate(num);
+    	}
     	
     	pageListLock.release();
     	
@@ -147,27 +168,225 @@ public class UserKernel extends ThreadedKernel {
     
     /**
      * NEW METHOD:
-     * Releases pages from memory and adds it back to
-     * the freePages list(only one page at a time).
+     * Allocates a single page filled with zeros, for memory that starts out
+     * empty (bss, stack, heap). A page zeroed ahead of time by the idle thread
+     * is used if there is one; otherwise a free page is zeroed now.
+     * 
+     * @return : the physical page number, or -1 if there is no free page
+     */
+    public static int allocateZeroedPage() {
+    	pageListLock.acquire();
+    	
+    	int ppn = -1;
+    	boolean zeroed = (numZeroed > 0);
+    	if (zeroed)
+    		ppn = zeroedPages[--numZeroed];
+    	else
+    		ppn = freePages.allocate();
+    	
+    	if (zeroed)
+    		numZeroedHits++;
+    	else if (ppn != -1)
+    		numZeroedMisses++;
+    	
+    	pageListLock.release();
+    	
+    	if (ppn != -1 && !zeroed)
+    		zeroPages(ppn, 1);
+    	
+    	return ppn;
+    }
+    
+    /**
+     * NEW METHOD:
+     * The idle thread's task: takes a run of free pages, up to the room left
+     * in the pre-zeroed pool, and zeroes them with a single fill. Since the
+     * idle thread must never block, it gives up if pageListLock is held.
+     */
+    private static void zeroFreePages() {
+    	if (numZeroed == zeroedPages.length || !pageListLock.tryAcquire(0))
+    		return;
+    	
+    	int num = Math.min(zeroedPages.length - numZeroed, maxZeroingRun);
+    	num = Math.min(num, freePages.getNumFreePages());
+    	
+    	int first = -1;
+    	while (num > 0 && (first = freePages.allocateContiguous(num)) == -1)
+    		num /= 2;
+    	
+    	if (first != -1) {
+    		// nothing here lets another thread run, so the pages cannot be
+    		// handed out before they are zeroed
+    		zeroPages(first, num);
+    		for (int i = 0; i < num; i++)
+    			zeroedPages[numZeroed++] = first + i;
+    	}
+    	
+    	pageListLock.release();
+    }
+    
+    private static void zeroPages(int first, int num) {
+    	int pageSize = Processor.pageSize;
+    	Arrays.fill(Machine.processor().getMemory(), first*pageSize,
+    			(first+num)*pageSize, (byte) 0);
+    }
+    
+    /**
+     * NEW METHOD:
+     * Returns the number of physical pages that are not allocated, counting
+     * the pre-zeroed ones.
+     * 
+     * @return : the number of free pages
+     */
+    public static int getNumFreePages() {
+    	pageListLock.acquire();
+    	int numFree = freePages.getNumFreePages() + numZeroed;
+    	pageListLock.release();
+    	
+    	return numFree;
+    }
+    
+    /**
+     * NEW METHOD:
+     * Releases a page from memory and gives it back to the
+     * page allocator (only one page at a time).
      * 
      * @param physPageNum : the physical page number to remove
      */
     public static void releasePage(int physPageNum){
     	pageListLock.acquire();
-    	freePages.add(physPageNum);
+    	freePages.free(physPageNum);
     	pageListLock.release();
     }
 
+    /**
+     * NEW METHOD:
+     * Releases every page in the array while holding pageListLock once.
+     * Used when a whole process is torn down.
+     * 
+     * @param physPageNums : the physical page numbers to remove (-1 entries are skipped)
+     */
+    public static void releasePages(int[] physPageNums){
+    	pageListLock.acquire();
+    	freePages.free(physPageNums);
+    	pageListLock.release();
+    }
+
+    /**
+     * NEW METHOD:
+     * Records one more mapping of a physical page that is shared
+     * copy-on-write between page tables. A page starts out with one mapping.
+     * 
+     * @param physPageNum : the shared physical page
+     */
+    public static void sharePage(int physPageNum){
+    	pageListLock.acquire();
+    	pageShares[physPageNum]++;
+    	pageListLock.release();
+    }
+
+    /**
+     * NEW METHOD:
+     * Drops one mapping of a page shared with sharePage(). The page is
+     * released when its last mapping is dropped.
+     * 
+     * @param physPageNum : the shared physical page
+     * 
+     * @return : true if that was the last mapping and the page is now free
+     */
+    public static boolean unsharePage(int physPageNum){
+    	pageListLock.acquire();
+    	boolean last = (pageShares[physPageNum] == 0);
+    	if (last)
+    		freePages.free(physPageNum);
+    	else
+    		pageShares[physPageNum]--;
+    	pageListLock.release();
+    	
+    	return last;
+    }
+
+    /**
+     * NEW METHOD:
+     * Tests whether more than one page table maps a physical page. A
+     * copy-on-write page that is no longer shared can simply be made
+     * writable again instead of copied.
+     * 
+     * @param physPageNum : the physical page
+     * 
+     * @return : true if some other page table still maps the page
+     */
+    public static boolean isPageShared(int physPageNum){
+    	pageListLock.acquire();
+    	boolean shared = (pageShares[physPageNum] > 0);
+    	pageListLock.release();
+    	
+    	return shared;
+    }
+
+    /**
+     * NEW METHOD:
+     * Returns the number of mappings of a page shared with sharePage(),
+     * counting the first.
+     * 
+     * @param physPageNum : the physical page
+     * 
+     * @return : the number of page tables and templates mapping the page
+     */
+    public static int getNumShares(int physPageNum){
+    	pageListLock.acquire();
+    	int shares = pageShares[physPageNum] + 1;
+    	pageListLock.release();
+    	
+    	return shares;
+    }
+
+    /**
+     * NEW METHOD:
+     * Gives back the memory held by the kernel's caches of executables when
+     * an allocation fails: first the exec templates, whose read-only pages
+     * then become unused in the section cache, then the unused section pages.
+     * 
+     * @return : the number of pages freed
+     */
+    public static int reclaimCachedPages(){
+    	int freed = imageCache.reclaim();
+    	return freed + sectionCache.reclaim();
+    }
+
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
     
-    public static LinkedList<Integer> freePages;
+    public static PageAllocator freePages;
     public static Lock pageListLock;
+    /** The number of extra page tables mapping each physical page. */
+    private static int[] pageShares;
+    /** Read-only executable pages shared between processes. */
+    public static SectionCache sectionCache;
+    /** Pre-loaded templates of executables, cloned by exec. */
+    public static ImageCache imageCache;
+    /**
+     * Free pages the idle thread has already zeroed, which
+     * <tt>allocateZeroedPage()</tt> hands out first. The pool holds up to
+     * <tt>UserKernel.zeroedPoolSize</tt> pages, a quarter of memory by
+     * default; they go back to the allocator when it runs out.
+     */
+    private static int[] zeroedPages;
+    private static int numZeroed = 0;
+    /** The most pages the idle thread zeroes at once. */
+    private static final int maxZeroingRun = 8;
+    /** The number of zeroed pages served from the pool, and zeroed on demand. */
+    public static int numZeroedHits = 0, numZeroedMisses = 0;
 
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
 
 	//----------------Task 1 Variables-------------------
-    	public static LinkedList<FileReference> globalFileArray = new LinkedList<FileReference>();
+    	/** Every open file in the system, by name. */
+    	public static HashMap<String, FileReference> globalFileTable = new HashMap<String, FileReference>();
+    	/** Guards globalFileTable. Lookups take it shared, updates exclusive. */
+    	public static RWLock globalFileLock;
+    	/** The file system handles behind every open user file. */
+    	public static HostFilePool hostFiles;
     	//----------------End Task 1-------------------------
 }
\ No newline at end of file
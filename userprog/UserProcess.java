@@ -23,22 +23,20 @@ public class UserProcess {
      * Allocate a new process.
      */
     public UserProcess() {
-	int numPhysPages = Machine.processor().getNumPhysPages();
-	pageTable = new TranslationEntry[numPhysPages];
-	for (int i=0; i<numPhysPages; i++)
-	    pageTable[i] = new TranslationEntry(i,i, true,false,false,false);
-
 	//----------- Task 1 -----------
 	processID = processNum;
 	++processNum;
 
 	localFileTable = new OpenFile[16];
+	localFileRefs = new FileReference[localFileTable.length];
+	usedDescriptors = new long[(maxOpenFiles + 63) / 64];
+	usedDescriptors[0] = 0x3;	// stdin and stdout
 
 	localFileTable[0] = UserKernel.console.openForReading();
 	localFileTable[1] = UserKernel.console.openForWriting();
 
-	UserKernel.globalFileArray.add(new FileReference(localFileTable[0].getName()));
-	UserKernel.globalFileArray.add(new FileReference(localFileTable[1].getName()));
+	localFileRefs[0] = referenceGlobalFile(localFileTable[0].getName());
+	localFileRefs[1] = referenceGlobalFile(localFileTable[1].getName());
 
 	//----------- End Task 1 -----------
     }
@@ -99,14 +97,14 @@ public class UserProcess {
      * 						 true or not)
      */
     public TranslationEntry getTranslationEntry(int vpn, boolean writeNotRead){
-    	if(vpn < 0 || vpn > numPages)
+    	if(vpn < 0 || vpn >= numPages)
     		return null;				//invalid vpn
     	
     	TranslationEntry result = pageTable[vpn];
     	if(result == null)
     		return null;				//error, no entry in pageTable
     	
-    	if(result.readOnly && writeNotRead)
+    	if(result.readOnly && writeNotRead && !breakCopyOnWrite(vpn))
     		return null;				//error, attempted write on readOnly entry
     	
     	if(writeNotRead)
@@ -118,6 +116,18 @@ public class UserProcess {
 
     }
 
+    /**
+     * NEW METHOD:
+     * 
+     * Called once the kernel is done copying to or from the page returned
+     * by getTranslationEntry(). Does nothing here; subclasses that can take
+     * pages away from a process use it to stop doing so during the copy.
+     * 
+     * @param entry : the TranslationEntry returned by getTranslationEntry
+     */
+    protected void releaseTranslationEntry(TranslationEntry entry) {
+    }
+
     /**
      * Read a null-terminated string from this process's virtual memory. Read
      * at most <tt>maxLength + 1</tt> bytes from the specified address, search
@@ -191,6 +201,7 @@ public class UserProcess {
     	//Read from first offset to start of next page (or for length amount)
     	int amountRead = Math.min(length,  pageSize - firstOffset);
     	System.arraycopy(memory, Processor.makeAddress(translatedEntry.ppn, firstOffset), data, offset, amountRead);
+    	releaseTranslationEntry(translatedEntry);
     	offset += amountRead;
     
 	
@@ -204,6 +215,7 @@ public class UserProcess {
 		
     		amountRead2 = Math.min(length - amountRead, pageSize);
     		System.arraycopy(memory, Processor.makeAddress(translatedEntry.ppn, 0), data, offset, amountRead2);
+    		releaseTranslationEntry(translatedEntry);
     		offset += amountRead2;
     		amountRead += amountRead2;
     	}
@@ -256,6 +268,7 @@ public class UserProcess {
     	//Write from first offset to start of next page (or for length amount)
     	int amountWritten = Math.min(length,  pageSize - firstOffset);
     	System.arraycopy(data, offset, memory, Processor.makeAddress(translatedEntry.ppn, firstOffset), amountWritten);
+    	releaseTranslationEntry(translatedEntry);
     	offset += amountWritten;
 
 
@@ -269,6 +282,7 @@ public class UserProcess {
 	
     		amountWritten2 = Math.min(length - amountWritten, pageSize);
     		System.arraycopy(data, offset, memory, Processor.makeAddress(translatedEntry.ppn, 0), amountWritten2);
+    		releaseTranslationEntry(translatedEntry);
     		offset += amountWritten2;
     		amountWritten += amountWritten2;
     	}
@@ -279,7 +293,9 @@ public class UserProcess {
      * Load the executable with the specified name into this process, and
      * prepare to pass it the specified arguments. Opens the executable, reads
      * its header information, and copies sections and arguments into this
-     * process's virtual memory.
+     * process's virtual memory. If <tt>UserKernel.imageCache</tt> has a
+     * template of the executable, the file is not touched at all: the
+     * template is cloned instead.
      *
      * @param	name	the name of the file containing the executable.
      * @param	args	the arguments to pass to the executable.
@@ -288,33 +304,6 @@ public class UserProcess {
     private boolean load(String name, String[] args) {
 	Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 	
-	OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-	if (executable == null) {
-	    Lib.debug(dbgProcess, "\topen failed");
-	    return false;
-	}
-
-	try {
-	    coff = new Coff(executable);
-	}
-	catch (EOFException e) {
-	    executable.close();
-	    Lib.debug(dbgProcess, "\tcoff load failed");
-	    return false;
-	}
-
-	// make sure the sections are contiguous and start at page 0
-	numPages = 0;
-	for (int s=0; s<coff.getNumSections(); s++) {
-	    CoffSection section = coff.getSection(s);
-	    if (section.getFirstVPN() != numPages) {
-		coff.close();
-		Lib.debug(dbgProcess, "\tfragmented executable");
-		return false;
-	    }
-	    numPages += section.getLength();
-	}
-
 	// make sure the argv array will fit in one page
 	byte[][] argv = new byte[args.length][];
 	int argsSize = 0;
@@ -324,13 +313,65 @@ public class UserProcess {
 	    argsSize += 4 + argv[i].length + 1;
 	}
 	if (argsSize > pageSize) {
-	    coff.close();
 	    Lib.debug(dbgProcess, "\targuments too long");
 	    return false;
 	}
 
-	// program counter initially points at the program entry point
-	initialPC = coff.getEntryPoint();	
+	executableName = name;
+
+	ImageCache.Image image = UserKernel.imageCache.acquire(name);
+	if (image != null) {
+	    Lib.debug(dbgProcess, "\tcloning cached image");
+	    executableLength = image.getLength();
+	    coff = null;
+	    numPages = image.getNumPages();
+	    initialPC = image.getEntryPoint();
+	}
+	else {
+	    OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+	    if (file == null) {
+		Lib.debug(dbgProcess, "\topen failed");
+		return false;
+	    }
+
+	    // each section loaded below is read in one transfer
+	    executable = new ReadAheadFile(file);
+	    executableLength = executable.length();
+
+	    try {
+		coff = new Coff(executable);
+	    }
+	    catch (EOFException e) {
+		executable.close();
+		executable = null;
+		Lib.debug(dbgProcess, "\tcoff load failed");
+		return false;
+	    }
+
+	    // make sure the sections are contiguous and start at page 0
+	    numPages = 0;
+	    for (int s=0; s<coff.getNumSections(); s++) {
+		CoffSection section = coff.getSection(s);
+		if (section.getFirstVPN() != numPages) {
+		    coff.close();
+		    executable = null;
+		    Lib.debug(dbgProcess, "\tfragmented executable");
+		    return false;
+		}
+		numPages += section.getLength();
+	    }
+
+	    // program counter initially points at the program entry point
+	    initialPC = coff.getEntryPoint();
+
+	    // keep a template for the next exec, and start from it ourselves
+	    image = UserKernel.imageCache.create(name, executableLength, coff,
+						 executable);
+	    if (image != null) {
+		coff.close();
+		coff = null;
+	    }
+	}
 
 	// next comes the stack; stack pointer initially points to top of it
 	numPages += stackPages;
@@ -339,7 +380,12 @@ public class UserProcess {
 	// and finally reserve 1 page for arguments
 	numPages++;
 
-	if (!loadSections())
+	boolean loaded = (image != null) ? loadImage(image) : loadSections();
+	if (executable != null) {
+	    executable.endLoad();
+	    executable = null;
+	}
+	if (!loaded)
 	    return false;
 
 	// store arguments in last page
@@ -371,15 +417,6 @@ public class UserProcess {
      * @return	<tt>true</tt> if the sections were successfully loaded.
      */
     protected boolean loadSections() {
-    	//Allocate physical page numbers, see UserKernel.java
-    	int[] physicalPageNums = UserKernel.allocatePages(numPages); //numPages = lenght of memory needed by process + stackPages + 1 for args
-    
-    	if(physicalPageNums == null) {
-    		coff.close();
-    		Lib.debug(dbgProcess, "\tinsufficient physical memory");
-    		return false;
-    	}
-    
 		if(numPages > Machine.processor().getNumPhysPages()) {
 			coff.close();
 			Lib.debug(dbgProcess, "\tinsufficient physical memory2");
@@ -387,39 +424,243 @@ public class UserProcess {
 		}
 
     	pageTable = new TranslationEntry[numPages];
+    	copyOnWrite = new boolean[numPages];
+    	
+    	//Read-only sections are shared with other processes running the same file, see SectionCache.java
+    	int numPrivatePages = numPages;
+    	for (int s=0; s<coff.getNumSections(); s++) {
+    		CoffSection section = coff.getSection(s);
+    		if (!section.isReadOnly())
+    			continue;
+    		
+    		Lib.debug(dbgProcess, "\tsharing " + section.getName()
+    				  + " section (" + section.getLength() + " pages)");
+    		
+    		for (int i=0; i<section.getLength(); i++) {
+    			int vpn = section.getFirstVPN()+i;
+    			int ppn = UserKernel.sectionCache.acquire(executableName, executableLength, s, section, i, executable);
+    			if (ppn == -1) {
+    				releasePages();
+    				coff.close();
+    				Lib.debug(dbgProcess, "\tinsufficient physical memory");
+    				return false;
+    			}
+    			pageTable[vpn] = new TranslationEntry(vpn, ppn, true, true, false, false);
+    			numPrivatePages--;
+    		}
+    	}
+    	
+    	//Pages that start out empty (bss, stack and argv) take pages the idle thread has zeroed, see UserKernel.java
+    	boolean[] fromFile = new boolean[numPages];
+    	for (int s=0; s<coff.getNumSections(); s++) {
+    		CoffSection section = coff.getSection(s);
+    		if (!section.isReadOnly() && section.isInitialzed()) {
+    			for (int i=0; i<section.getLength(); i++)
+    				fromFile[section.getFirstVPN()+i] = true;
+    		}
+    	}
+    	
+    	for (int vpn=0; vpn<numPages; vpn++) {
+    		if (pageTable[vpn] != null || fromFile[vpn])
+    			continue;
+    		
+    		int ppn = UserKernel.allocateZeroedPage();
+    		if (ppn == -1 && UserKernel.reclaimCachedPages() > 0)
+    			ppn = UserKernel.allocateZeroedPage();
+    		if (ppn == -1) {
+    			releasePages();
+    			coff.close();
+    			Lib.debug(dbgProcess, "\tinsufficient physical memory");
+    			return false;
+    		}
+    		pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false, false, false);
+    		numPrivatePages--;
+    	}
+    	
+    	//Allocate physical page numbers for the pages loaded from the file, see UserKernel.java
+    	int[] physicalPageNums = UserKernel.allocatePages(numPrivatePages);
+    	if(physicalPageNums == null && UserKernel.reclaimCachedPages() > 0)
+    		physicalPageNums = UserKernel.allocatePages(numPrivatePages);
+    
+    	if(physicalPageNums == null) {
+    		releasePages();
+    		coff.close();
+    		Lib.debug(dbgProcess, "\tinsufficient physical memory");
+    		return false;
+    	}
+    	
+    	int next = 0;
+    	for (int vpn=0; vpn<numPages; vpn++) {
+    		if (pageTable[vpn] == null)
+    			pageTable[vpn] = new TranslationEntry(vpn, physicalPageNums[next++], true, false, false, false);
+    	}
     	
-    	// load sections
+    	// load the initialized writable sections; the rest are already zeroed
     	for (int s=0; s<coff.getNumSections(); s++) {
     		CoffSection section = coff.getSection(s);
+    		if (section.isReadOnly() || !section.isInitialzed())
+    			continue;
 	    
     		Lib.debug(dbgProcess, "\tinitializing " + section.getName()
     				  + " section (" + section.getLength() + " pages)");
 
     		for (int i=0; i<section.getLength(); i++) {
     			int vpn = section.getFirstVPN()+i;
-    			int ppn = physicalPageNums[vpn];
-    			pageTable[vpn] = new TranslationEntry(vpn, ppn, true, section.isReadOnly(), false, false);
-    			section.loadPage(i, ppn);
+    			executable.loadPage(s, section, i, pageTable[vpn].ppn);
     		}
     	}
-    	//allocate free pages for stack and argv
-    	for(int i = numPages - stackPages - 1; i < numPages; i++)
-    		pageTable[i] = new TranslationEntry(i, physicalPageNums[i], true, false, false, false);
 
     	return true;
     }
 
+    /**
+     * Set up this process's memory from a template in the image cache, on
+     * which <tt>ImageCache.acquire()</tt> or <tt>create()</tt> has already
+     * taken a reference to each page for this process. Read-only pages are
+     * mapped like shared section pages, the template's writable pages are
+     * mapped copy-on-write, and bss, stack and argv get zeroed pages. Like
+     * <tt>loadSections()</tt>, this is the last step that can fail.
+     *
+     * @param	image	the template of the executable.
+     * @return	<tt>true</tt> if the image was successfully mapped.
+     */
+    protected boolean loadImage(ImageCache.Image image) {
+    	pageTable = new TranslationEntry[numPages];
+    	copyOnWrite = new boolean[numPages];
+    	
+    	//Map every page of the template first, so a failure below releases the references taken for us
+    	for (int vpn=0; vpn<image.getNumPages(); vpn++) {
+    		int ppn = image.getPPN(vpn);
+    		if (ppn == -1)
+    			continue;
+    		
+    		copyOnWrite[vpn] = !image.isReadOnly(vpn);
+    		pageTable[vpn] = new TranslationEntry(vpn, ppn, true, true, false, false);
+    	}
+    	
+    	for (int vpn=0; vpn<numPages; vpn++) {
+    		if (pageTable[vpn] != null)
+    			continue;
+    		
+    		int ppn = UserKernel.allocateZeroedPage();
+    		if (ppn == -1 && UserKernel.reclaimCachedPages() > 0)
+    			ppn = UserKernel.allocateZeroedPage();
+    		if (ppn == -1) {
+    			releasePages();
+    			Lib.debug(dbgProcess, "\tinsufficient physical memory");
+    			return false;
+    		}
+    		pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false, false, false);
+    	}
+    	
+    	return true;
+    }
+
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-    	coff.close();
+    	if(coff != null)
+    		coff.close();
     	
-    	for(int i = 0; i < numPages; i++)
-    		UserKernel.releasePage(pageTable[i].ppn);
+    	releasePages();
     	pageTable = null;
     }    
     
+    /**
+     * Gives this process a copy of another process's address space, for
+     * fork(). Shared read-only section pages just get another reference from
+     * the section cache. Every other page is shared copy-on-write: it is
+     * made read-only in both page tables, and whichever process writes it
+     * first gets its own copy in breakCopyOnWrite().
+     * 
+     * @param parent : the process being forked
+     * 
+     * @return : true if successful
+     */
+    protected boolean forkSections(UserProcess parent) {
+    	pageTable = new TranslationEntry[numPages];
+    	copyOnWrite = new boolean[numPages];
+    	
+    	for(int vpn = 0; vpn < numPages; vpn++) {
+    		TranslationEntry entry = parent.pageTable[vpn];
+    		
+    		if(entry.readOnly && !parent.copyOnWrite[vpn]) {
+    			UserKernel.sectionCache.reference(entry.ppn);
+    		}
+    		else {
+    			parent.copyOnWrite[vpn] = true;
+    			entry.readOnly = true;
+    			copyOnWrite[vpn] = true;
+    			UserKernel.sharePage(entry.ppn);
+    		}
+    		
+    		pageTable[vpn] = new TranslationEntry(vpn, entry.ppn, true, true, false, false);
+    	}
+    	
+    	return true;
+    }
+    
+    /**
+     * NEW METHOD:
+     * Gives this process its own, writable copy of a page it shares
+     * copy-on-write. If every other mapping of the page is already gone, the
+     * page is just made writable again.
+     * 
+     * @param vpn : the virtual page that is being written
+     * 
+     * @return : true if the page is now writable, false if it is not a
+     * 			 copy-on-write page or there is no memory for the copy
+     */
+    protected boolean breakCopyOnWrite(int vpn) {
+    	if(vpn < 0 || vpn >= numPages || !copyOnWrite[vpn])
+    		return false;
+    	
+    	TranslationEntry entry = pageTable[vpn];
+    	int shared = entry.ppn;
+    	if(UserKernel.isPageShared(shared)) {
+    		int[] physicalPageNums = UserKernel.allocatePages(1);
+    		if(physicalPageNums == null && UserKernel.reclaimCachedPages() > 0)
+    			physicalPageNums = UserKernel.allocatePages(1);
+    		if(physicalPageNums == null) {
+    			Lib.debug(dbgProcess, "\tno physical page to copy vpn " + vpn);
+    			return false;
+    		}
+    		
+    		byte[] memory = Machine.processor().getMemory();
+    		System.arraycopy(memory, shared*pageSize, memory, physicalPageNums[0]*pageSize, pageSize);
+    		UserKernel.unsharePage(shared);
+    		entry.ppn = physicalPageNums[0];
+    	}
+    	
+    	copyOnWrite[vpn] = false;
+    	entry.readOnly = false;
+    	return true;
+    }
+    
+    /**
+     * Gives back every physical page mapped by the page table. Shared
+     * read-only pages go back to the section cache, copy-on-write pages lose
+     * one mapping, and the private ones go to the page allocator in a single
+     * call.
+     */
+    private void releasePages() {
+    	int[] physicalPageNums = new int[numPages];
+    	for(int i = 0; i < numPages; i++) {
+    		physicalPageNums[i] = -1;
+    		if(pageTable[i] == null)
+    			continue;
+    		
+    		if(copyOnWrite[i])
+    			UserKernel.unsharePage(pageTable[i].ppn);
+    		else if(pageTable[i].readOnly)
+    			UserKernel.sectionCache.release(pageTable[i].ppn);
+    		else
+    			physicalPageNums[i] = pageTable[i].ppn;
+    	}
+    	UserKernel.releasePages(physicalPageNums);
+    }
+    
     public void selfTest(){
     	System.out.println("UserProcessTest");
     }
@@ -434,6 +675,13 @@ public class UserProcess {
     public void initRegisters() {
 	Processor processor = Machine.processor();
 
+	// a forked child carries on from where its parent called fork()
+	if (initialRegisters != null) {
+	    for (int i=0; i<processor.numUserRegisters; i++)
+		processor.writeRegister(i, initialRegisters[i]);
+	    return;
+	}
+
 	// by default, everything's 0
 	for (int i=0; i<processor.numUserRegisters; i++)
 	    processor.writeRegister(i, 0);
@@ -456,7 +704,7 @@ public class UserProcess {
     	// if root process
     	if(processID == 0) {
 
-	    	Machine.halt();
+	    	Kernel.kernel.terminate();
 		
 	    	Lib.assertNotReached("Machine.halt() did not halt machine!");
 	    	return 0;
@@ -473,42 +721,11 @@ public class UserProcess {
      */
     
     private int handleCreat(int addr) {
-    	// argument validation 
-    	int fileDescriptor = Processor.pageFromAddress(addr);
-    	if(fileDescriptor < 0 || fileDescriptor > 15)
-    		return -1;
-    	
-    	// get filename from memory 
+    	// readVirtualMemoryString() returns null unless addr is a mapped page of this process
     	String fileName = readVirtualMemoryString(addr, 256);
-    	OpenFile openFile = UserKernel.fileSystem.open(fileName, true);   //attempt to open the file 
-    	
-    	if(openFile == null)
+    	if(fileName == null || isUnlinking(fileName))
     		return -1;
-    	
-    	int localFileIndex = -1;
-    	
-    	// Iterate through the local file table to find file
-    	if(fileName != null){
-    		for(int i = 2; i < localFileTable.length; ++i){
-    			if(localFileTable[i] == openFile) 
-    				return localFileIndex = i;
-    		}
-    		
-    		// If the open file isn't found, search for a free space in the local file table and add the file
-    		if(localFileIndex == -1){
-    			for(int i = 2; i < localFileTable.length; ++i){
-    				if(localFileTable[i] == null){
-    					localFileIndex = i;
-    					localFileTable[i] = openFile;
-    					updateGlobalFileArray(fileDescriptor, openFile, fileName);
-    					return localFileIndex;
-    				} else 
-    					return -1; // error
-    			}
-    		}
-    	}
-    	
-    	return -1; // error
+    	return openDescriptor(fileName, true);
     }
     
     /**
@@ -518,39 +735,120 @@ public class UserProcess {
      */
     
     private int handleOpen(int addr){
-    	// argument validation 
-    	int fileDescriptor = Processor.pageFromAddress(addr);
-    	if(fileDescriptor < 0 || fileDescriptor > 15)
+    	// readVirtualMemoryString() returns null unless addr is a mapped page of this process
+    	String fileName = readVirtualMemoryString(addr, 256);
+    	if(fileName == null || isUnlinking(fileName))
     		return -1;
+    	return openDescriptor(fileName, false);
+    }
+    
+    /**
+     * Opens the named file and installs it in a free slot of the local file
+     * table, together with a counted reference to its global entry.
+     * @param fileName File name
+     * @param create true to create the file if it does not exist
+     * @return file descriptor on success, -1 if an error occured
+     */
+    private int openDescriptor(String fileName, boolean create) {
+    	FileReference fileRef = referenceGlobalFile(fileName);
+    	if(fileRef == null)
+    		return -1;	//unlinked while we were opening it
     	
-    	String fileName = readVirtualMemoryString(addr, 256);
-    	OpenFile openFile = UserKernel.fileSystem.open(fileName, false);
+    	UserKernel.sectionCache.invalidate(fileName);	//it may be about to change
+    	UserKernel.imageCache.invalidate(fileName);
+    	OpenFile openFile = UserKernel.hostFiles.open(fileRef, create);   //attempt to open the file 
+    	int localFileIndex = (openFile == null) ? -1 : allocateDescriptor();
     	
-    	if(openFile == null)
+    	if(localFileIndex == -1){
+    		if(openFile != null)
+    			openFile.close();
+    		releaseGlobalFile(fileRef);
     		return -1;
+    	}
     	
-    	int localFileIndex = -1;
+    	localFileTable[localFileIndex] = openFile;
+    	localFileRefs[localFileIndex] = fileRef;
+    	return localFileIndex;
+    }
+    
+    /**
+     * Opens another descriptor on the file behind one of ours, with its own
+     * position starting at ours, and its own reference to the file's global
+     * entry. It stays usable after our descriptor is closed; once it is
+     * closed, the reference must be dropped with releaseGlobalFile().
+     * @param fileDescriptor The file descriptor
+     * @return the new descriptor, or null if the file could not be opened
+     */
+    protected OpenFile reopenDescriptor(int fileDescriptor) {
+    	if(!isOpenDescriptor(fileDescriptor))
+    		return null;
     	
-    	if(fileName != null){
-    		for(int i = 2; i < localFileTable.length; ++i){
-    			if(localFileTable[i] == openFile) 
-    				return localFileIndex = i;
-    		}
+    	FileReference fileRef = localFileRefs[fileDescriptor];
+    	UserKernel.globalFileLock.acquireWrite();
+    	fileRef.addReference();
+    	UserKernel.globalFileLock.releaseWrite();
+    	
+    	OpenFile openFile = UserKernel.hostFiles.open(fileRef, false);
+    	if(openFile == null) {
+    		releaseGlobalFile(fileRef);
+    		return null;
+    	}
+    	
+    	openFile.seek(localFileTable[fileDescriptor].tell());
+    	return openFile;
+    }
+    
+    /**
+     * Returns the global file table entry behind an open file descriptor.
+     * @param fileDescriptor The file descriptor
+     * @return the entry, or null if the descriptor is not open
+     */
+    protected FileReference getFileReference(int fileDescriptor) {
+    	return isOpenDescriptor(fileDescriptor) ? localFileRefs[fileDescriptor] : null;
+    }
+    
+    /**
+     * Checks that a file descriptor refers to an open file.
+     * @param fileDescriptor The file descriptor
+     * @return true if the descriptor is open
+     */
+    private boolean isOpenDescriptor(int fileDescriptor) {
+    	return fileDescriptor >= 0 && fileDescriptor < localFileTable.length
+    		&& localFileTable[fileDescriptor] != null;
+    }
+    
+    /**
+     * Finds the lowest free file descriptor and marks it used, growing the
+     * local file table if the descriptor is past its end.
+     * @return the descriptor, or -1 if maxOpenFiles are already open
+     */
+    private int allocateDescriptor() {
+    	for(int word = 0; word < usedDescriptors.length; ++word){
+    		if(usedDescriptors[word] == -1L)
+    			continue;	//all 64 in use
     		
-    		if(localFileIndex == -1){
-    			for(int i = 2; i < localFileTable.length; ++i){
-    				if(localFileTable[i] == null){
-    					localFileIndex = i;
-    					localFileTable[i] = openFile;
-    					updateGlobalFileArray(fileDescriptor, openFile, fileName);
-    					return localFileIndex;
-    				} else 
-    					return -1;
-    			}
+    		int fileDescriptor = word*64 + Long.numberOfTrailingZeros(~usedDescriptors[word]);
+    		if(fileDescriptor >= maxOpenFiles)
+    			return -1;
+    		
+    		if(fileDescriptor >= localFileTable.length){
+    			int length = Math.min(localFileTable.length*2, maxOpenFiles);
+    			localFileTable = java.util.Arrays.copyOf(localFileTable, length);
+    			localFileRefs = java.util.Arrays.copyOf(localFileRefs, length);
     		}
+    		
+    		usedDescriptors[word] |= 1L << fileDescriptor;
+    		return fileDescriptor;
     	}
-    	
-    	return -1; 
+    	return -1;
+    }
+    
+    /**
+     * Marks a file descriptor free again.
+     * @param fileDescriptor The file descriptor
+     */
+    private void freeDescriptor(int fileDescriptor) {
+    	usedDescriptors[fileDescriptor >> 6] &= ~(1L << fileDescriptor);
     }
     
     /**
@@ -562,27 +860,14 @@ public class UserProcess {
      */
     private int handleRead(int fileDescriptor, int bufferAddr, int size){
     	// argument validation 
-    	if(fileDescriptor < 0 || fileDescriptor > 15 || localFileTable[fileDescriptor] == null || bufferAddr < 0 || size < 0)
+    	if(!isOpenDescriptor(fileDescriptor) || bufferAddr < 0 || size < 0)
     		return -1;
     	
     	
     	if(size == 0)
     		return 0;
     	
-    	byte[] store = new byte[size];
-    	OpenFile openFile = localFileTable[fileDescriptor];
-    	int bytesRead = openFile.read(store, 0, size);
-    	
-    	if(bytesRead < 0)
-    		return -1;
-    	
-    	int bytesWritten = writeVirtualMemory(bufferAddr, store, 0, bytesRead);
-    	
-    	if(bytesRead != bytesWritten)
-    		return -1;
-    	
-    	return bytesRead;
-    	
+    	return transferFile(localFileTable[fileDescriptor], bufferAddr, size, true);
     }
     
     /**
@@ -595,26 +880,56 @@ public class UserProcess {
     
     private int handleWrite(int fileDescriptor, int bufferAddr, int size){
     	// argument validation 
-    	if(fileDescriptor < 0 || fileDescriptor > 15 || localFileTable[fileDescriptor] == null || bufferAddr < 0 || size < 0)
+    	if(!isOpenDescriptor(fileDescriptor) || bufferAddr < 0 || size < 0)
     		return -1;
     	
     	if(size == 0)
     		return 0;
     	
-    	byte[] store = new byte[size];
-    	OpenFile openFile = localFileTable[fileDescriptor];
-    	
-    	int bytesRead = readVirtualMemory(bufferAddr, store, 0, size);
-    	if(bytesRead < 0)
-    		return -1;
+    	return transferFile(localFileTable[fileDescriptor], bufferAddr, size, false);
+    }
+    
+    /**
+     * Moves data between a file and this process's virtual memory without an
+     * intermediate buffer. The user buffer is walked one page at a time through
+     * the page table, and each page slice of main memory is handed straight to
+     * OpenFile.read() or OpenFile.write(), so the data is copied only once.
+     * Stops early on a short transfer or an unmapped page.
+     * @param openFile The file to read from or write to
+     * @param vaddr First byte of the user buffer
+     * @param length Number of bytes to transfer
+     * @param toMemory true to read the file into memory, false to write memory to the file
+     * @return Number of bytes transferred, or -1 if nothing could be transferred because of an error
+     */
+    private int transferFile(OpenFile openFile, int vaddr, int length, boolean toMemory) {
+    	byte[] memory = Machine.processor().getMemory();
+    	int transferred = 0;
     	
-    	int bytesWritten = openFile.write(store, 0, bytesRead);
+    	while(transferred < length){
+    		TranslationEntry entry = getTranslationEntry(Processor.pageFromAddress(vaddr), toMemory);
+    		if(entry == null)
+    			break;		//unmapped or read-only page
+    		
+    		int pageOffset = Processor.offsetFromAddress(vaddr);
+    		int amount = Math.min(length - transferred, pageSize - pageOffset);
+    		int paddr = Processor.makeAddress(entry.ppn, pageOffset);
+    		
+    		int result = toMemory ? openFile.read(memory, paddr, amount)
+    				: openFile.write(memory, paddr, amount);
+    		releaseTranslationEntry(entry);
+    		if(result < 0)
+    			break;
+    		
+    		transferred += result;
+    		vaddr += result;
+    		if(result < amount)
+    			return transferred;	//end of file, or no more console input
+    	}
     	
-    	if(bytesWritten < 0){
+    	if(transferred == 0)
     		return -1;
-    	} else
-    		return bytesWritten;
- 
+    	
+    	return transferred;
     }
     
     /**
@@ -624,40 +939,17 @@ public class UserProcess {
      */
     private int handleClose(int fileDescriptor){
     	// argument validation 
-    	if(fileDescriptor < 0 || fileDescriptor > 15 || localFileTable[fileDescriptor] == null)
+    	if(!isOpenDescriptor(fileDescriptor))
     		return -1;
     	
-    	String fileName = localFileTable[fileDescriptor].getName();
-    	
+    	localFileTable[fileDescriptor].close();
+    	localFileTable[fileDescriptor] = null;
     	
-    	if(fileName != null){
-    		localFileTable[fileDescriptor].close();
-    		localFileTable[fileDescriptor] = null;
-    	}
+    	FileReference fileRef = localFileRefs[fileDescriptor];
+    	localFileRefs[fileDescriptor] = null;
+    	freeDescriptor(fileDescriptor);
     	
-    	int globalFileIndex = -1;
-    	for(int i = 0; i < UserKernel.globalFileArray.size(); ++i){
-    		if(UserKernel.globalFileArray.get(i).getName().equals(fileName)){
-    			globalFileIndex = i;
-    			break;
-    		}
-    	}
-    	
-    	if(globalFileIndex == -1){
-    		return -1;
-    	} else {
-    		UserKernel.globalFileArray.get(globalFileIndex).removeReference();
-    		if(UserKernel.globalFileArray.get(globalFileIndex).getReferences() == 0 && UserKernel.globalFileArray.get(globalFileIndex).getUnlinking() == true){
-    			boolean closing = UserKernel.fileSystem.remove(fileName); //attempt to close
-    			if(closing){
-    				return 0; //success
-    			} else {
-    				return -1;
-    			}
-    		}
-    	}
-    	
-    	return -1;
+    	return releaseGlobalFile(fileRef) ? 0 : -1;
     }
     
     /**
@@ -667,72 +959,85 @@ public class UserProcess {
      * @return Returns 0 on success or -1 if an error occured 
      */
     private int handleUnlink(int addr){
-    	// argument validation 
-    	int fileDescriptor = Processor.pageFromAddress(addr);
-    	if(fileDescriptor < 0 || fileDescriptor > 15)
+    	// readVirtualMemoryString() returns null unless addr is a mapped page of this process
+    	String fileName = readVirtualMemoryString(addr, 256);
+    	if(fileName == null)
     		return -1;
     	
-    	String fileName = readVirtualMemoryString(addr, 256);
+    	UserKernel.sectionCache.invalidate(fileName);
+    	UserKernel.imageCache.invalidate(fileName);
+    	UserKernel.globalFileLock.acquireWrite();
+    	FileReference fileRef = UserKernel.globalFileTable.get(fileName);
     	
-    	for(int i = 2; i < localFileTable.length; ++i){
-    		if(localFileTable[fileDescriptor] != null){
-    			if(localFileTable[fileDescriptor].getName().equals(fileName)){
-    				localFileTable[fileDescriptor].close();
-    				localFileTable[fileDescriptor] = null;
-    			}
-    		}
+    	int result = -1;
+    	if(fileRef != null){
+    		fileRef.setUnlinking(true);	//the last close removes it
+    		result = 0;
+    	} else if(UserKernel.fileSystem.remove(fileName)){
+    		result = 0;	//nobody has it open, remove it now
     	}
+    	UserKernel.globalFileLock.releaseWrite();
     	
-    	int globalFileIndex = -1;
-    	for(int i = 0; i < UserKernel.globalFileArray.size(); ++i){
-    		if(UserKernel.globalFileArray.get(i).getName().equals(fileName)){
-    			globalFileIndex = i;
-    			break;
-    		}
-    	}
+    	return result;
+    }
+    
+    /**
+     * Takes a reference to the named file's entry in the global file table,
+     * creating the entry if the file is not open anywhere yet.
+     * @param fileName File name
+     * @return the file's entry, or null if the file is waiting to be deleted
+     */
+    private static FileReference referenceGlobalFile(String fileName) {
+    	UserKernel.globalFileLock.acquireWrite();
+    	FileReference fileRef = UserKernel.globalFileTable.get(fileName);
     	
-    	if(globalFileIndex == -1){
-    		return -1;
+    	if(fileRef == null){
+    		fileRef = new FileReference(fileName);  //create reference to the Open File
+    		UserKernel.globalFileTable.put(fileName, fileRef);
+    	} else if(fileRef.getUnlinking()){
+    		fileRef = null;
     	} else {
-    		UserKernel.globalFileArray.get(globalFileIndex).setUnlinking(true);
-    		UserKernel.globalFileArray.get(globalFileIndex).removeReference();
-    		if(UserKernel.globalFileArray.get(globalFileIndex).getReferences() == 0){
-    			boolean closing = UserKernel.fileSystem.remove(fileName); //attempt to close
-    			if(closing){
-    				UserKernel.globalFileArray.remove(globalFileIndex);
-    				return 0; //success
-    			} else {
-    				return -1;
-    			}
-    		}
+    		fileRef.addReference();
     	}
+    	UserKernel.globalFileLock.releaseWrite();
     	
-    	return -1;
+    	return fileRef;
     }
     
     /**
-     * Updates the globalFileArray. Increments the number of references when called by handleOpen() or handleCreat()
-     * @param fileDescriptor The file descriptor
-     * @param openFile File for reading and writing
-     * @param fileName File name
+     * Drops a reference taken by referenceGlobalFile(). The last reference
+     * removes the entry, and deletes the file if it was unlinked.
+     * @param fileRef The file's entry
+     * @return false if the file had to be deleted and could not be
      */
-    private void updateGlobalFileArray(int fileDescriptor, OpenFile openFile, String fileName) {
-    	int globalFileIndex = -1;
+    protected static boolean releaseGlobalFile(FileReference fileRef) {
+    	boolean success = true;
     	
-    	for(int i = 0; i< UserKernel.globalFileArray.size(); ++i){
-    		if(UserKernel.globalFileArray.get(i).getName().equals(fileName)) {
-    			globalFileIndex = i;
-    			break;
-    		}
+    	UserKernel.globalFileLock.acquireWrite();
+    	if(fileRef.removeReference() == 0){
+    		UserKernel.globalFileTable.remove(fileRef.getName());
+    		UserKernel.hostFiles.discard(fileRef);
+    		if(fileRef.getUnlinking())
+    			success = UserKernel.fileSystem.remove(fileRef.getName());
     	}
+    	UserKernel.globalFileLock.releaseWrite();
     	
-    	if(globalFileIndex == -1){
-    		FileReference fileRef = new FileReference(fileName);  //create reference to the Open File
-    		UserKernel.globalFileArray.add(fileRef);
-    	} else {
-    		if(UserKernel.globalFileArray.get(globalFileIndex).getUnlinking() == false)
-    			UserKernel.globalFileArray.get(globalFileIndex).addReference();
-    	}
+    	return success;
+    }
+    
+    /**
+     * Checks whether the named file has been unlinked while still open. Such a
+     * file cannot be opened or created again until it is deleted.
+     * @param fileName File name
+     * @return true if the file is waiting to be deleted
+     */
+    private static boolean isUnlinking(String fileName) {
+    	UserKernel.globalFileLock.acquireRead();
+    	FileReference fileRef = UserKernel.globalFileTable.get(fileName);
+    	boolean unlinking = fileRef != null && fileRef.getUnlinking();
+    	UserKernel.globalFileLock.releaseRead();
+    	
+    	return unlinking;
     }
     
     // --------- End Task 1 --------
@@ -841,6 +1146,65 @@ public class UserProcess {
     		return -1;
     	}
     }
+    
+    /**
+     * Handle the fork() system call. The child process gets a copy-on-write
+     * copy of this process's address space, its registers and its open
+     * files, and returns 0 from fork().
+     * @return the child's process ID, or -1 if it could not be created
+     */
+    private int handleFork() {
+    	UserProcess child = UserProcess.newUserProcess();
+    	
+    	if(!child.forkFrom(this)) {
+    		child.handleClose(0);
+    		child.handleClose(1);
+    		return -1;
+    	}
+    	
+    	new UThread(child).setName(executableName).fork();
+    	return child.processID;
+    }
+    
+    /**
+     * Makes this new process a copy of the process calling fork().
+     * @param parent The process calling fork()
+     * @return true if successful
+     */
+    private boolean forkFrom(UserProcess parent) {
+    	executableName = parent.executableName;
+    	executableLength = parent.executableLength;
+    	numPages = parent.numPages;
+    	
+    	if(!forkSections(parent))
+    		return false;
+    	
+    	// resume after the syscall instruction, with fork() returning 0
+    	Processor processor = Machine.processor();
+    	initialRegisters = new int[Processor.numUserRegisters];
+    	for(int i = 0; i < Processor.numUserRegisters; i++)
+    		initialRegisters[i] = processor.readRegister(i);
+    	initialRegisters[Processor.regV0] = 0;
+    	initialRegisters[Processor.regPC] = processor.readRegister(Processor.regNextPC);
+    	initialRegisters[Processor.regNextPC] = processor.readRegister(Processor.regNextPC) + 4;	//as advancePC() does for the parent
+    	
+    	// the open files, each with its own position, starting where the parent's is
+    	for(int fileDescriptor = 2; fileDescriptor < parent.localFileTable.length; fileDescriptor++) {
+    		OpenFile openFile = parent.reopenDescriptor(fileDescriptor);
+    		if(openFile == null)
+    			continue;
+    		
+    		if(fileDescriptor >= localFileTable.length) {
+    			localFileTable = java.util.Arrays.copyOf(localFileTable, parent.localFileTable.length);
+    			localFileRefs = java.util.Arrays.copyOf(localFileRefs, parent.localFileTable.length);
+    		}
+    		localFileTable[fileDescriptor] = openFile;
+    		localFileRefs[fileDescriptor] = parent.localFileRefs[fileDescriptor];
+    		usedDescriptors[fileDescriptor >> 6] |= 1L << fileDescriptor;
+    	}
+    	
+    	return true;
+    }
     // ---------- End Task 3 -------
     
 
@@ -854,7 +1218,8 @@ public class UserProcess {
 	syscallRead = 6,
 	syscallWrite = 7,
 	syscallClose = 8,
-	syscallUnlink = 9;
+	syscallUnlink = 9,
+	syscallFork = 13;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -875,6 +1240,7 @@ public class UserProcess {
      *								</tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  fork();</tt></td></tr>
      * </table>
      * 
      * @param	syscall	the syscall number.
@@ -908,6 +1274,8 @@ public class UserProcess {
               return handleJoin(a0, a1);
         case syscallExit:
               return handleExit(a0);
+        case syscallFork:
+              return handleFork();
 
         default:
             Lib.debug(dbgProcess, "Unknown syscall " + syscall);
@@ -938,7 +1306,13 @@ public class UserProcess {
 	    processor.writeRegister(Processor.regV0, result);
 	    processor.advancePC();
 	    break;				       
-				       
+
+	case Processor.exceptionReadOnly:
+	    if (breakCopyOnWrite(Processor.pageFromAddress(
+		    processor.readRegister(Processor.regBadVAddr))))
+		break;
+	    // not copy-on-write, so a real protection fault
+
 	default:
 	    Lib.debug(dbgProcess, "Unexpected exception: " +
 		      Processor.exceptionNames[cause]);
@@ -948,17 +1322,31 @@ public class UserProcess {
 
     /** The program being run by this process. */
     protected Coff coff;
+    /** The executable while load() is reading it, or null. */
+    private ReadAheadFile executable = null;
 
     /** This process's page table. */
     protected TranslationEntry[] pageTable;
     /** The number of contiguous pages occupied by the program. */
     protected int numPages;
 
+    /**
+     * Whether each page is shared copy-on-write with another process, and
+     * mapped read-only until it is written.
+     */
+    protected boolean[] copyOnWrite;
+
     /** The number of pages in the program's stack. */
     protected final int stackPages = 8;
     
+    /** The executable's name and length, which identify its shared pages. */
+    protected String executableName;
+    protected int executableLength;
+    
     private int initialPC, initialSP;
     private int argc, argv;
+    /** The registers a forked child starts with, or null. */
+    private int[] initialRegisters = null;
 	
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
@@ -968,6 +1356,12 @@ public class UserProcess {
 	private static int processNum = 0;
 	public int processID;
 	public OpenFile[] localFileTable;
+	/** The global file table entry behind each open descriptor. */
+	private FileReference[] localFileRefs;
+	/** One bit per file descriptor, set if the descriptor is in use. */
+	private long[] usedDescriptors;
+	/** The most files a process can have open at once. */
+	public static final int maxOpenFiles = 1024;
 	private static final char debugFlag = 'f';
 
 	//----------- End Task 1 -----------
@@ -0,0 +1,197 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A compressed, in-memory tier in front of the swap file. Dirty pages being
+ * evicted are deflated and kept here when they compress well, which is
+ * common for stack, bss and other mostly-zero pages; faulting them back in
+ * costs no file system request.
+ *
+ * <p>
+ * The store holds at most <tt>budget</tt> bytes of compressed data. When it
+ * is full, the pages that were stored first are inflated again and spilled
+ * to the swap file. Pages that do not shrink to <tt>maxRatio</tt> of their
+ * size are refused and go straight to swap.
+ *
+ * <p>
+ * This class is not synchronized; it is only used while holding
+ * <tt>VMKernel.vmLock</tt>.
+ */
+public class CompressedStore {
+    /**
+     * Allocate a new compressed store.
+     *
+     * @param	budget	the most bytes of compressed data to keep.
+     */
+    public CompressedStore(int budget) {
+	Lib.assertTrue(budget > 0);
+
+	this.budget = budget;
+    }
+
+    /**
+     * A compressed page, owned by one virtual page of one process.
+     */
+    public static class Page {
+	private Page(VMProcess owner, int vpn, byte[] data) {
+	    this.owner = owner;
+	    this.vpn = vpn;
+	    this.data = data;
+	}
+
+	private VMProcess owner;
+	private int vpn;
+	private byte[] data;
+    }
+
+    /**
+     * Compress a physical page and store it, handing it to its owner with
+     * <tt>VMProcess.compressed()</tt>. Older pages are spilled to swap if
+     * that takes the store over budget.
+     *
+     * @param	owner	the process whose page it is.
+     * @param	vpn	the virtual page.
+     * @param	ppn	the physical page holding its contents.
+     * @return	<tt>true</tt> if the page was stored, or <tt>false</tt> if it
+     *		did not compress well enough.
+     */
+    public boolean store(VMProcess owner, int vpn, int ppn) {
+	deflater.reset();
+	deflater.setInput(Machine.processor().getMemory(), ppn*pageSize,
+			  pageSize);
+	deflater.finish();
+
+	int length = deflater.deflate(scratch);
+	if (!deflater.finished() || length > pageSize*maxRatio) {
+	    numRefused++;
+	    return false;
+	}
+
+	byte[] data = new byte[length];
+	System.arraycopy(scratch, 0, data, 0, length);
+
+	Page page = new Page(owner, vpn, data);
+	pages.add(page);
+	size += length;
+	numStored++;
+	owner.compressed(vpn, page);
+
+	while (size > budget && spill())
+	    ;
+
+	return true;
+    }
+
+    /**
+     * Decompress a stored page into a physical page and remove it from the
+     * store.
+     *
+     * @param	page	the stored page.
+     * @param	ppn	the physical page to fill.
+     * @return	<tt>true</tt> if the page was restored.
+     */
+    public boolean load(Page page, int ppn) {
+	remove(page);
+
+	inflater.reset();
+	inflater.setInput(page.data);
+	try {
+	    if (inflater.inflate(Machine.processor().getMemory(),
+				 ppn*pageSize, pageSize) != pageSize)
+		return false;
+	}
+	catch (DataFormatException e) {
+	    return false;
+	}
+
+	numLoaded++;
+	return true;
+    }
+
+    /**
+     * Discard a stored page.
+     *
+     * @param	page	the stored page.
+     */
+    public void remove(Page page) {
+	if (pages.remove(page))
+	    size -= page.data.length;
+    }
+
+    /**
+     * Return a one-line summary of how the store has been used.
+     *
+     * @return	the summary.
+     */
+    public String toString() {
+	return "stored " + numStored + ", loaded " + numLoaded
+	    + ", spilled " + numSpilled + ", refused " + numRefused
+	    + ", " + size + "/" + budget + " bytes in use";
+    }
+
+    /**
+     * Move the oldest stored page to the swap file.
+     *
+     * @return	<tt>true</tt> if a page was moved.
+     */
+    private boolean spill() {
+	Iterator<Page> i = pages.iterator();
+	if (!i.hasNext())
+	    return false;
+
+	Page page = i.next();
+	i.remove();
+	size -= page.data.length;
+
+	inflater.reset();
+	inflater.setInput(page.data);
+	try {
+	    Lib.assertTrue(inflater.inflate(scratch, 0, pageSize) == pageSize);
+	}
+	catch (DataFormatException e) {
+	    Lib.assertNotReached("corrupt compressed page");
+	}
+
+	int slot = VMKernel.swap.allocateSlot();
+	if (!VMKernel.swap.writeRun(slot, scratch, 1)) {
+	    // keep it rather than lose it; we stay over budget for now
+	    VMKernel.swap.freeSlot(slot);
+	    pages.add(page);
+	    size += page.data.length;
+	    return false;
+	}
+
+	page.owner.spilled(page.vpn, slot);
+	numSpilled++;
+	return true;
+    }
+
+    private int budget;
+    private int size = 0;
+
+    /** Stored pages, oldest first. */
+    private LinkedHashSet<Page> pages = new LinkedHashSet<Page>();
+
+    private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private Inflater inflater = new Inflater();
+    private byte[] scratch = new byte[2*pageSize];
+
+    private int numStored = 0;
+    private int numLoaded = 0;
+    private int numSpilled = 0;
+    private int numRefused = 0;
+
+    /** The largest compressed size accepted, as a fraction of a page. */
+    private static final double maxRatio = 0.5;
+
+    private static final int pageSize = Processor.pageSize;
+}
@@ -0,0 +1,168 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * The page daemon: a kernel thread that keeps a pool of free physical pages,
+ * so that page faults seldom have to evict a page themselves.
+ *
+ * <p>
+ * It sleeps until <tt>VMKernel.allocateFrame()</tt> sees fewer than
+ * <tt>VMKernel.lowWater</tt> free pages, then picks victims with the same
+ * clock as <tt>VMKernel.evictPage()</tt> until <tt>VMKernel.highWater</tt>
+ * pages are free. Clean victims, and dirty ones that fit in the compressed
+ * store, are freed at once, as are pages of memory-mapped files once written
+ * back to their files, and shared pages once every process that maps them
+ * has saved them (<tt>VMKernel.evictShared()</tt>). The remaining dirty victims are copied into one
+ * buffer and written to a run of adjacent swap slots with a single write,
+ * without holding <tt>vmLock</tt>, so faults can proceed meanwhile. A
+ * process that faults on a page still being written takes it straight back
+ * (<tt>VMKernel.rescue()</tt>).
+ */
+public class PageDaemon implements Runnable {
+    /**
+     * Allocate a new page daemon.
+     *
+     * @param	maxBatch	the most dirty pages to write at once.
+     */
+    public PageDaemon(int maxBatch) {
+	batch = new int[maxBatch];
+	buffer = new byte[maxBatch*pageSize];
+    }
+
+    public void run() {
+	VMKernel.vmLock.acquire();
+
+	while (true) {
+	    int freed = 0;
+
+	    int numFree = UserKernel.getNumFreePages();
+	    if (numFree < VMKernel.lowWater)
+		freed = clean(VMKernel.highWater - numFree);
+
+	    if (freed > 0)
+		VMKernel.framesFreed.wakeAll();
+	    else
+		VMKernel.needFrames.sleep();
+	}
+    }
+
+    /**
+     * Free up to <i>wanted</i> pages, looking at no more victims than there
+     * are physical pages, so that pages that cannot be written out do not
+     * keep the clock going round forever.
+     *
+     * @return	the number of pages freed.
+     */
+    private int clean(int wanted) {
+	int freed = 0;
+	int n = 0;
+
+	int ppn;
+	for (int tries=0; tries<numPhysPages && freed + n < wanted &&
+		 n < batch.length && (ppn = VMKernel.nextVictim()) != -1;
+	     tries++) {
+	    if (VMKernel.isSharedFrame(ppn)) {
+		// saved by each process that maps it; not worth batching
+		if (VMKernel.evictShared(ppn))
+		    freed++;
+		continue;
+	    }
+
+	    VMProcess owner = VMKernel.getFrameOwner(ppn);
+	    int vpn = VMKernel.getFrameVPN(ppn);
+
+	    if (owner.isFileMapped(vpn)) {
+		// belongs in its file, not in swap; written back right away
+		if (!owner.pageOut(vpn))
+		    continue;
+	    }
+	    else if (owner.beginPageOut(vpn) &&
+		     (VMKernel.compressedStore == null ||
+		      !VMKernel.compressedStore.store(owner, vpn, ppn))) {
+		// dirty and incompressible, so it goes in the batch
+		VMKernel.beginTransit(ppn);
+		batch[n++] = ppn;
+		continue;
+	    }
+
+	    VMKernel.removeFrame(ppn);
+	    VMKernel.numEvictions++;
+	    UserKernel.releasePage(ppn);
+	    freed++;
+	}
+
+	if (n > 0)
+	    freed += writeBatch(n);
+
+	Lib.debug(dbgVM, "page daemon freed " + freed + " pages");
+	return freed;
+    }
+
+    /**
+     * Write the first <i>n</i> pages of the batch to swap with one write, and
+     * free the ones whose owners did not take them back meanwhile.
+     *
+     * @return	the number of pages freed.
+     */
+    private int writeBatch(int n) {
+	byte[] memory = Machine.processor().getMemory();
+	for (int i=0; i<n; i++)
+	    System.arraycopy(memory, batch[i]*pageSize, buffer, i*pageSize,
+			     pageSize);
+
+	int first = VMKernel.swap.allocateRun(n);
+
+	VMKernel.vmLock.release();
+	boolean written = VMKernel.swap.writeRun(first, buffer, n);
+	VMKernel.vmLock.acquire();
+
+	int freed = 0;
+	for (int i=0; i<n; i++) {
+	    int ppn = batch[i];
+	    int slot = first + i;
+
+	    if (!VMKernel.endTransit(ppn)) {
+		// rescued by its owner; the copy we wrote is not needed
+		VMKernel.swap.freeSlot(slot);
+		continue;
+	    }
+
+	    VMProcess owner = VMKernel.getFrameOwner(ppn);
+	    int vpn = VMKernel.getFrameVPN(ppn);
+
+	    if (owner != null && !written) {
+		VMKernel.swap.freeSlot(slot);
+		owner.cancelPageOut(vpn);
+		continue;
+	    }
+
+	    if (owner != null) {
+		owner.endPageOut(vpn, slot);
+		VMKernel.numEvictions++;
+	    }
+	    else {
+		VMKernel.swap.freeSlot(slot);	// the owner has exited
+	    }
+
+	    VMKernel.removeFrame(ppn);
+	    UserKernel.releasePage(ppn);
+	    freed++;
+	}
+
+	// even if nothing was freed, faults waiting for the batch must check
+	// numInTransit again
+	VMKernel.framesFreed.wakeAll();
+
+	return freed;
+    }
+
+    private int[] batch;
+    private byte[] buffer;
+    private int numPhysPages = Machine.processor().getNumPhysPages();
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgVM = 'v';
+}
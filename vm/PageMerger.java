@@ -0,0 +1,150 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * The page merger: a kernel thread that finds resident pages with identical
+ * contents and maps them all to one physical page, copy-on-write.
+ *
+ * <p>
+ * Every <tt>VMKernel.mergeInterval</tt> ticks it checksums each private
+ * page in the frame table, except pages of memory-mapped files. A page is
+ * only considered once its checksum has not changed since the previous scan,
+ * so pages that are being written are left alone. Stable pages with equal
+ * checksums are compared byte for byte; a page of zeros is merged into
+ * <tt>VMKernel.zeroPage</tt>, and any other duplicate into the first page
+ * found with its contents, which becomes shared. A process that writes a
+ * merged page gets its own copy again through
+ * <tt>VMProcess.handleException()</tt>.
+ *
+ * <p>
+ * A whole scan holds <tt>VMKernel.vmLock</tt>. Page tables are only changed
+ * before the first call that could let another thread run, so no process
+ * can write a page between its comparison and its merge.
+ */
+public class PageMerger implements Runnable {
+    /**
+     * Allocate a new page merger.
+     *
+     * @param	interval	the number of ticks between scans.
+     */
+    public PageMerger(int interval) {
+	Lib.assertTrue(interval > 0);
+
+	this.interval = interval;
+	lastChecksum = new long[Machine.processor().getNumPhysPages()];
+
+	checksum.update(new byte[pageSize], 0, pageSize);
+	zeroChecksum = checksum.getValue();
+    }
+
+    public void run() {
+	while (true) {
+	    ThreadedKernel.alarm.waitUntil(interval);
+
+	    VMKernel.vmLock.acquire();
+	    scan();
+	    VMKernel.vmLock.release();
+	}
+    }
+
+    /**
+     * Merge every stable page that has the same contents as another.
+     */
+    private void scan() {
+	HashMap<Long, Integer> pagesByChecksum = new HashMap<Long, Integer>();
+	ArrayList<Integer> shared = new ArrayList<Integer>();
+	ArrayList<Integer> freed = new ArrayList<Integer>();
+
+	for (int ppn=0; ppn<lastChecksum.length; ppn++) {
+	    VMProcess owner = VMKernel.getFrameOwner(ppn);
+	    if (owner == null || VMKernel.isBusy(ppn) ||
+		owner.isFileMapped(VMKernel.getFrameVPN(ppn)))
+		continue;
+
+	    checksum.reset();
+	    checksum.update(memory(), ppn*pageSize, pageSize);
+	    long sum = checksum.getValue();
+
+	    boolean stable = (sum == lastChecksum[ppn]);
+	    lastChecksum[ppn] = sum;
+	    if (!stable)
+		continue;
+
+	    int into;
+	    if (sum == zeroChecksum && samePage(ppn, VMKernel.zeroPage)) {
+		into = VMKernel.zeroPage;
+	    }
+	    else {
+		Integer match = pagesByChecksum.get(sum);
+		if (match == null || !samePage(ppn, match)) {
+		    pagesByChecksum.put(sum, ppn);
+		    continue;
+		}
+		into = match;
+	    }
+
+	    if (into != VMKernel.zeroPage) {
+		if (VMKernel.getFrameOwner(into) != null) {
+		    // the first duplicate; the page it matched becomes shared
+		    share(into, into);
+		}
+		shared.add(into);
+	    }
+	    share(ppn, into);
+	    freed.add(ppn);
+	}
+
+	// nothing above lets another thread run, but these can
+	for (int ppn : shared)
+	    UserKernel.sharePage(ppn);
+	for (int ppn : freed)
+	    UserKernel.releasePage(ppn);
+
+	VMKernel.numMerged += freed.size();
+	if (freed.size() > 0)
+	    Lib.debug(dbgVM, "page merger freed " + freed.size() + " pages");
+    }
+
+    /**
+     * Map the virtual page held by private page <i>ppn</i> to shared page
+     * <i>into</i>, and take <i>ppn</i> out of the frame table.
+     */
+    private void share(int ppn, int into) {
+	VMProcess owner = VMKernel.getFrameOwner(ppn);
+	int vpn = VMKernel.getFrameVPN(ppn);
+
+	VMKernel.removeFrame(ppn);
+	owner.shareFrame(vpn, into);
+    }
+
+    private boolean samePage(int ppn1, int ppn2) {
+	byte[] memory = memory();
+	int paddr1 = ppn1*pageSize, paddr2 = ppn2*pageSize;
+
+	for (int i=0; i<pageSize; i++) {
+	    if (memory[paddr1+i] != memory[paddr2+i])
+		return false;
+	}
+	return true;
+    }
+
+    private static byte[] memory() {
+	return Machine.processor().getMemory();
+    }
+
+    private int interval;
+    private CRC32 checksum = new CRC32();
+    private long zeroChecksum;
+    /** The checksum each physical page had at the previous scan. */
+    private long[] lastChecksum;
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgVM = 'v';
+}
@@ -0,0 +1,320 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A two-level page table, packed into one <tt>long</tt> per virtual page
+ * instead of one <tt>TranslationEntry</tt> object per page.
+ *
+ * <p>
+ * A virtual page number is split in two: the high bits index a directory,
+ * and the low <tt>tableBits</tt> bits index one of the second-level tables
+ * it points to. A second-level table is only allocated when a page in its
+ * range becomes part of the address space, and freed again when its last
+ * page is unmapped, so a sparse address space (a high memory-mapped file
+ * above a small program) costs memory for the pages it uses, plus one
+ * directory slot per <tt>1 &lt;&lt; tableBits</tt> pages of its span.
+ *
+ * <p>
+ * The low 24 bits of a page's word hold its physical page number, all ones
+ * if there is none, and the bits above hold the flags <tt>pageValid</tt>,
+ * <tt>pageReadOnly</tt>, <tt>pageUsed</tt>, <tt>pageDirty</tt>,
+ * <tt>pageCopyOnWrite</tt> and <tt>pageFileMapped</tt>. The high 32 bits
+ * hold its swap slot plus one. A word of 0 is a hole in the address space;
+ * every page that is part of it has <tt>pageMapped</tt> set.
+ *
+ * <p>
+ * With a TLB, <tt>TranslationEntry</tt> objects are only built to be
+ * copied into the TLB. Without one, the processor walks a
+ * <tt>TranslationEntry[]</tt> itself, so this table also keeps that array
+ * (<tt>getHardwareTable()</tt>), holding an entry for each resident page
+ * only: it is updated whenever a page's translation changes, and the used
+ * and dirty bits the processor sets in it are read back as if they were
+ * in the packed word. That array is necessarily as long as the address
+ * space.
+ *
+ * <p>
+ * This class is not synchronized; <tt>VMProcess</tt> only uses it while
+ * holding <tt>VMKernel.vmLock</tt>.
+ */
+public class PageTable {
+    /**
+     * Allocate a new page table in which every page is a hole.
+     *
+     * @param	numPages	the number of virtual pages.
+     */
+    public PageTable(int numPages) {
+	this.numPages = numPages;
+	directory = new long[Lib.divRoundUp(numPages, tableSize)][];
+	if (!Machine.processor().hasTLB())
+	    hardware = new TranslationEntry[numPages];
+    }
+
+    /**
+     * Return the number of virtual pages this table covers.
+     */
+    public int getNumPages() {
+	return numPages;
+    }
+
+    /**
+     * Return the number of pages that are part of the address space.
+     */
+    public int getNumMapped() {
+	return numMapped;
+    }
+
+    /**
+     * Extend this table to cover <i>numPages</i> pages. The new pages are
+     * holes; only the directory grows.
+     */
+    public void grow(int numPages) {
+	Lib.assertTrue(numPages >= this.numPages);
+
+	this.numPages = numPages;
+	directory = Arrays.copyOf(directory,
+				  Lib.divRoundUp(numPages, tableSize));
+	if (hardware != null)
+	    hardware = Arrays.copyOf(hardware, numPages);
+    }
+
+    /**
+     * Return the array the processor should use as its page table when there
+     * is no TLB, or <tt>null</tt> if there is a TLB. The array is replaced by
+     * <tt>grow()</tt>.
+     */
+    public TranslationEntry[] getHardwareTable() {
+	return hardware;
+    }
+
+    /**
+     * Test whether a virtual page is part of the address space.
+     */
+    public boolean isMapped(int vpn) {
+	return vpn >= 0 && vpn < numPages && word(vpn) != 0;
+    }
+
+    /**
+     * Return the first page at or above <i>vpn</i> that is part of the
+     * address space, skipping second-level tables that are not allocated.
+     *
+     * @return	the virtual page number, or -1 if there is none.
+     */
+    public int nextMapped(int vpn) {
+	for (vpn=Math.max(vpn, 0); vpn<numPages; vpn++) {
+	    long[] table = directory[vpn >> tableBits];
+	    if (table == null)
+		vpn |= tableSize-1;
+	    else if (table[vpn & (tableSize-1)] != 0)
+		return vpn;
+	}
+	return -1;
+    }
+
+    /**
+     * Make a hole part of the address space, as a page that is not resident,
+     * allocating its second-level table if necessary.
+     *
+     * @param	vpn	the virtual page.
+     * @param	readOnly	whether the page may not be written.
+     */
+    public void map(int vpn, boolean readOnly) {
+	Lib.assertTrue(vpn >= 0 && vpn < numPages && word(vpn) == 0);
+
+	if (directory[vpn >> tableBits] == null)
+	    directory[vpn >> tableBits] = new long[tableSize];
+
+	setWord(vpn, pageMapped | noPPN | (readOnly ? pageReadOnly : 0));
+	numMapped++;
+    }
+
+    /**
+     * Turn a page back into a hole, freeing its second-level table if no
+     * other page in it is part of the address space.
+     */
+    public void unmap(int vpn) {
+	Lib.assertTrue(isMapped(vpn));
+
+	setWord(vpn, 0);
+	numMapped--;
+	if (hardware != null)
+	    hardware[vpn] = null;
+
+	long[] table = directory[vpn >> tableBits];
+	for (int i=0; i<tableSize; i++) {
+	    if (table[i] != 0)
+		return;
+	}
+	directory[vpn >> tableBits] = null;
+    }
+
+    /**
+     * Return the physical page a page is or was last held in, or -1.
+     */
+    public int getPPN(int vpn) {
+	int ppn = (int) word(vpn) & noPPN;
+	return (ppn == noPPN) ? -1 : ppn;
+    }
+
+    /**
+     * Set the physical page a page is held in.
+     */
+    public void setPPN(int vpn, int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < noPPN && isMapped(vpn));
+
+	takeHardwareBits(vpn);
+	setWord(vpn, (word(vpn) & ~noPPN) | ppn);
+	updateHardware(vpn);
+    }
+
+    /**
+     * Return the swap slot holding a page's contents, or -1.
+     */
+    public int getSwapSlot(int vpn) {
+	return (int) (word(vpn) >>> 32) - 1;
+    }
+
+    /**
+     * Record the swap slot holding a page's contents, or -1 for none.
+     */
+    public void setSwapSlot(int vpn, int slot) {
+	Lib.assertTrue(slot >= -1 && isMapped(vpn));
+
+	setWord(vpn, (word(vpn) & 0xFFFFFFFFL) | ((long) (slot+1) << 32));
+    }
+
+    /**
+     * Test one of the flags of a page. The used and dirty bits include those
+     * the processor has set since the last change to the page.
+     *
+     * @param	vpn	the virtual page.
+     * @param	flag	one of the <tt>pageZZZ</tt> flags.
+     */
+    public boolean test(int vpn, int flag) {
+	if ((word(vpn) & flag) != 0)
+	    return true;
+
+	TranslationEntry entry = (hardware == null) ? null : hardware[vpn];
+	return entry != null && (flag == pageUsed && entry.used ||
+				 flag == pageDirty && entry.dirty);
+    }
+
+    /**
+     * Set or clear one of the flags of a page.
+     *
+     * @param	vpn	the virtual page.
+     * @param	flag	one of the <tt>pageZZZ</tt> flags other than
+     *			<tt>pageMapped</tt>.
+     * @param	on	whether the flag should be set.
+     */
+    public void set(int vpn, int flag, boolean on) {
+	Lib.assertTrue(flag != pageMapped && isMapped(vpn));
+
+	takeHardwareBits(vpn);
+	if (on)
+	    setWord(vpn, word(vpn) | flag);
+	else
+	    setWord(vpn, word(vpn) & ~flag);
+
+	updateHardware(vpn);
+    }
+
+    /**
+     * Fill in a <tt>TranslationEntry</tt> for a page, for copying into the
+     * TLB.
+     *
+     * @param	vpn	the virtual page.
+     * @param	entry	the entry to overwrite.
+     * @return	<i>entry</i>.
+     */
+    public TranslationEntry fill(int vpn, TranslationEntry entry) {
+	entry.vpn = vpn;
+	entry.ppn = getPPN(vpn);
+	entry.valid = test(vpn, pageValid);
+	entry.readOnly = test(vpn, pageReadOnly);
+	entry.used = test(vpn, pageUsed);
+	entry.dirty = test(vpn, pageDirty);
+	return entry;
+    }
+
+    /**
+     * Return a page's word, walking the directory; 0 if its second-level
+     * table is not allocated.
+     */
+    private long word(int vpn) {
+	long[] table = directory[vpn >> tableBits];
+	return (table == null) ? 0 : table[vpn & (tableSize-1)];
+    }
+
+    private void setWord(int vpn, long word) {
+	directory[vpn >> tableBits][vpn & (tableSize-1)] = word;
+    }
+
+    /**
+     * Move the used and dirty bits the processor has set in its entry for a
+     * page into the packed word, before the page is changed.
+     */
+    private void takeHardwareBits(int vpn) {
+	TranslationEntry entry = (hardware == null) ? null : hardware[vpn];
+	if (entry == null)
+	    return;
+
+	if (entry.used)
+	    setWord(vpn, word(vpn) | pageUsed);
+	if (entry.dirty)
+	    setWord(vpn, word(vpn) | pageDirty);
+	entry.used = false;
+	entry.dirty = false;
+    }
+
+    /**
+     * Bring the processor's entry for a page up to date after a change,
+     * dropping it if the page is no longer resident.
+     */
+    private void updateHardware(int vpn) {
+	if (hardware == null)
+	    return;
+
+	if ((word(vpn) & pageValid) == 0) {
+	    hardware[vpn] = null;
+	    return;
+	}
+
+	TranslationEntry entry = hardware[vpn];
+	if (entry == null)
+	    entry = hardware[vpn] = new TranslationEntry();
+
+	// the bits are in the word now; the processor sets them afresh
+	fill(vpn, entry);
+	entry.used = false;
+	entry.dirty = false;
+    }
+
+    /** The page's translation may be used. */
+    public static final int pageValid = 1<<24;
+    /** The page may not be written. */
+    public static final int pageReadOnly = 1<<25;
+    /** The page has been read or written. */
+    public static final int pageUsed = 1<<26;
+    /** The page has been written since it was last saved. */
+    public static final int pageDirty = 1<<27;
+    /** The page is shared, and gets its own physical page when written. */
+    public static final int pageCopyOnWrite = 1<<28;
+    /** The page is part of the address space. */
+    public static final int pageMapped = 1<<29;
+    /** The page belongs to a memory-mapped file, and is never swapped. */
+    public static final int pageFileMapped = 1<<30;
+
+    /** The number of low bits of a vpn that index a second-level table. */
+    private static final int tableBits = 6;
+    private static final int tableSize = 1<<tableBits;
+    private static final int noPPN = (1<<24) - 1;
+
+    private int numPages;
+    private int numMapped = 0;
+    /** The second-level tables, or null where every page is a hole. */
+    private long[][] directory;
+    private TranslationEntry[] hardware = null;
+}
@@ -0,0 +1,166 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * The backing store for evicted pages: a single file on
+ * <tt>ThreadedKernel.fileSystem</tt>, divided into page-sized slots.
+ *
+ * <p>
+ * Single pages are transferred directly between the file and main memory.
+ * The page-out daemon instead writes runs of adjacent slots from one buffer,
+ * so that a whole batch costs a single file system request. A <tt>long[]</tt>
+ * bitmap records which slots are in use; free slots are reused before the
+ * file is extended.
+ *
+ * <p>
+ * This class is not synchronized; <tt>VMKernel</tt> only uses it while
+ * holding <tt>vmLock</tt>, except for the transfers themselves.
+ */
+public class SwapFile {
+    /**
+     * Create the swap file, truncating it if it already exists.
+     *
+     * @param	name	the name of the swap file.
+     */
+    public SwapFile(String name) {
+	this.name = name;
+
+	file = ThreadedKernel.fileSystem.open(name, true);
+	Lib.assertTrue(file != null, "could not create swap file " + name);
+    }
+
+    /**
+     * Allocate a slot.
+     *
+     * @return	the slot number.
+     */
+    public int allocateSlot() {
+	return allocateRun(1);
+    }
+
+    /**
+     * Allocate <i>n</i> adjacent slots. The first run of free slots that is
+     * long enough is used, extending the file if there is none.
+     *
+     * @param	n	the number of slots.
+     * @return	the first slot of the run.
+     */
+    public int allocateRun(int n) {
+	Lib.assertTrue(n > 0);
+
+	int start = 0;
+	while (start < numSlots) {
+	    int word = start >> 6;
+	    if (usedSlots[word] == -1L) {
+		start = (word + 1) << 6;	// all 64 in use
+		continue;
+	    }
+	    if (isUsed(start)) {
+		start++;
+		continue;
+	    }
+
+	    int end = start;
+	    while (end < numSlots && end - start < n && !isUsed(end))
+		end++;
+	    if (end - start == n || end == numSlots)
+		break;	// long enough, or can be extended at the end
+	    start = end;
+	}
+
+	start = Math.min(start, numSlots);
+	numSlots = Math.max(numSlots, start + n);
+	if (numSlots > usedSlots.length*64) {
+	    long[] larger = new long[Math.max(usedSlots.length*2,
+					      (numSlots + 63) / 64)];
+	    System.arraycopy(usedSlots, 0, larger, 0, usedSlots.length);
+	    usedSlots = larger;
+	}
+
+	for (int slot=start; slot<start+n; slot++)
+	    usedSlots[slot >> 6] |= 1L << slot;
+
+	return start;
+    }
+
+    /**
+     * Free a slot allocated by <tt>allocateSlot()</tt> or
+     * <tt>allocateRun()</tt>.
+     *
+     * @param	slot	the slot number.
+     */
+    public void freeSlot(int slot) {
+	Lib.assertTrue(slot >= 0 && slot < numSlots && isUsed(slot));
+
+	usedSlots[slot >> 6] &= ~(1L << slot);
+    }
+
+    /**
+     * Read a slot into a physical page.
+     *
+     * @param	slot	the slot to read.
+     * @param	ppn	the physical page to fill.
+     * @return	<tt>true</tt> if the whole page was read.
+     */
+    public boolean read(int slot, int ppn) {
+	numReads++;
+	return file.read(slot*pageSize, Machine.processor().getMemory(),
+			 ppn*pageSize, pageSize) == pageSize;
+    }
+
+    /**
+     * Write a physical page to a slot.
+     *
+     * @param	slot	the slot to write.
+     * @param	ppn	the physical page to save.
+     * @return	<tt>true</tt> if the whole page was written.
+     */
+    public boolean write(int slot, int ppn) {
+	numWrites++;
+	return file.write(slot*pageSize, Machine.processor().getMemory(),
+			  ppn*pageSize, pageSize) == pageSize;
+    }
+
+    /**
+     * Write <i>n</i> pages to a run of adjacent slots with a single write.
+     *
+     * @param	slot	the first slot of the run.
+     * @param	buf	the pages to write, one after another.
+     * @param	n	the number of pages.
+     * @return	<tt>true</tt> if every page was written.
+     */
+    public boolean writeRun(int slot, byte[] buf, int n) {
+	numWrites++;
+	return file.write(slot*pageSize, buf, 0, n*pageSize) == n*pageSize;
+    }
+
+    /**
+     * Close and delete the swap file.
+     */
+    public void close() {
+	file.close();
+	ThreadedKernel.fileSystem.remove(name);
+    }
+
+    private boolean isUsed(int slot) {
+	return (usedSlots[slot >> 6] & (1L << slot)) != 0;
+    }
+
+    /** The number of read requests made to the swap file. */
+    public int numReads = 0;
+    /** The number of write requests made to the swap file. */
+    public int numWrites = 0;
+
+    private String name;
+    private OpenFile file;
+
+    /** The number of slots the file has been extended to. */
+    private int numSlots = 0;
+    /** One bit per slot, set if the slot is in use. */
+    private long[] usedSlots = new long[1];
+
+    private static final int pageSize = Processor.pageSize;
+}
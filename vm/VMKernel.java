@@ -5,6 +5,9 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+
 /**
  * A kernel that can support multiple demand-paging user processes.
  */
@@ -21,11 +24,43 @@ public class VMKernel extends UserKernel {
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	int numPhysPages = Machine.processor().getNumPhysPages();
+	frameOwner = new VMProcess[numPhysPages];
+	frameVPN = new int[numPhysPages];
+	framePins = new int[numPhysPages];
+	frameInTransit = new boolean[numPhysPages];
+
+	vmLock = new Lock("VMKernel.vmLock");
+	needFrames = new Condition(vmLock, "VMKernel.needFrames");
+	framesFreed = new Condition(vmLock, "VMKernel.framesFreed");
+
+	lowWater = Math.max(2, numPhysPages/16);
+	highWater = 2*lowWater;
+
+	swap = new SwapFile(swapFileName);
+
+	int compressedBytes = Config.getInteger("VMKernel.compressedPoolSize",
+						numPhysPages*pageSize/4);
+	if (compressedBytes > 0)
+	    compressedStore = new CompressedStore(compressedBytes);
+
+	zeroPage = UserKernel.allocateZeroedPage();
+
+	mergeInterval = Config.getInteger("VMKernel.mergeInterval", 0);
+
+	superpageSize = Config.getInteger("VMKernel.superpageSize", 1);
+	Lib.assertTrue(superpageSize > 0 &&
+		       (superpageSize & (superpageSize-1)) == 0,
+		       "VMKernel.superpageSize must be a power of 2");
+	if (Machine.processor().hasTLB())
+	    Lib.assertTrue(superpageSize <= Machine.processor().getTLBSize(),
+			   "VMKernel.superpageSize is larger than the TLB");
     }
 
     /**
      * Test this kernel.
-     */	
+     */
     public void selfTest() {
 	super.selfTest();
     }
@@ -34,16 +69,503 @@ public class VMKernel extends UserKernel {
      * Start running user programs.
      */
     public void run() {
+	new KThread(new PageDaemon(highWater)).setName("page daemon").fork();
+	if (mergeInterval > 0) {
+	    new KThread(new PageMerger(mergeInterval))
+		.setName("page merger").fork();
+	}
+
 	super.run();
     }
-    
+
     /**
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	System.out.println("VM: page faults " + numPageFaults
+			   + ", evictions " + numEvictions
+			   + ", swap reads " + swap.numReads
+			   + ", swap writes " + swap.numWrites);
+	System.out.println("Shared pages: zero-page mappings " + numZeroMapped
+			   + ", merged " + numMerged
+			   + ", copies on write " + numCopiesOnWrite);
+	if (compressedStore != null)
+	    System.out.println("Compressed pages: " + compressedStore);
+	if (superpageSize > 1)
+	    System.out.println("Superpages loaded into the TLB: "
+			       + numSuperpageLoads);
+	System.out.println("Zeroed pages: " + UserKernel.numZeroedHits
+			   + " zeroed while idle, " + UserKernel.numZeroedMisses
+			   + " zeroed on demand");
+	System.out.println("Exec images: " + UserKernel.imageCache);
+	swap.close();
+
 	super.terminate();
     }
 
+    /**
+     * Return a free physical page. The page daemon normally keeps some pages
+     * free, and is woken when fewer than <tt>lowWater</tt> are left. If
+     * memory is full anyway, a page is evicted here, or if all candidates
+     * are being written out by the daemon, we wait for it. Must be called
+     * while holding <tt>vmLock</tt>.
+     *
+     * @return	the physical page number, or -1 if every page is in use and
+     *		none can be evicted.
+     */
+    static int allocateFrame() {
+	return allocateFrame(false);
+    }
+
+    /**
+     * Return a free physical page filled with zeros, preferably one the idle
+     * thread has already zeroed. Otherwise like <tt>allocateFrame()</tt>.
+     */
+    static int allocateZeroedFrame() {
+	return allocateFrame(true);
+    }
+
+    private static int allocateFrame(boolean zeroed) {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+	while (true) {
+	    int ppn;
+	    if (zeroed) {
+		ppn = UserKernel.allocateZeroedPage();
+	    }
+	    else {
+		int[] ppns = UserKernel.allocatePages(1);
+		ppn = (ppns == null) ? -1 : ppns[0];
+	    }
+
+	    if (ppn != -1) {
+		if (UserKernel.getNumFreePages() < lowWater)
+		    needFrames.wake();
+		return ppn;
+	    }
+
+	    if (UserKernel.reclaimCachedPages() > 0 || evictPage())
+		continue;
+
+	    if (numInTransit == 0)
+		return -1;
+	    framesFreed.sleep();
+	}
+    }
+
+    /**
+     * Record that a physical page holds a page of a process, making it a
+     * candidate for eviction.
+     */
+    static void addFrame(int ppn, VMProcess process, int vpn) {
+	frameOwner[ppn] = process;
+	frameVPN[ppn] = vpn;
+    }
+
+    /**
+     * Record that a physical page no longer holds a page of a process.
+     */
+    static void removeFrame(int ppn) {
+	frameOwner[ppn] = null;
+    }
+
+    /**
+     * Record that a process maps a physical page shared copy-on-write, so
+     * that the page stays a candidate for eviction while it is shared. The
+     * zero page is never recorded.
+     */
+    static void addSharedMapping(int ppn, VMProcess process, int vpn) {
+	Lib.assertTrue(ppn != zeroPage);
+
+	addMapping(sharedFrames, ppn, process, vpn);
+    }
+
+    /**
+     * Undo <tt>addSharedMapping()</tt>, when a process stops mapping a shared
+     * physical page.
+     */
+    static void removeSharedMapping(int ppn, VMProcess process, int vpn) {
+	removeMapping(sharedFrames, ppn, process, vpn);
+    }
+
+    /**
+     * Record that a process maps a page of the section cache, so that the
+     * page is a candidate for eviction. Text pages are never written, so
+     * evicting one only invalidates its mappings.
+     */
+    static void addTextMapping(int ppn, VMProcess process, int vpn) {
+	addMapping(textFrames, ppn, process, vpn);
+    }
+
+    /**
+     * Undo <tt>addTextMapping()</tt>, when a process stops mapping a page of
+     * the section cache.
+     */
+    static void removeTextMapping(int ppn, VMProcess process, int vpn) {
+	removeMapping(textFrames, ppn, process, vpn);
+    }
+
+    private static void addMapping(
+	HashMap<Integer, ArrayList<SharedMapping>> frames, int ppn,
+	VMProcess process, int vpn) {
+	ArrayList<SharedMapping> mappings = frames.get(ppn);
+	if (mappings == null) {
+	    mappings = new ArrayList<SharedMapping>();
+	    frames.put(ppn, mappings);
+	}
+	mappings.add(new SharedMapping(process, vpn));
+    }
+
+    private static void removeMapping(
+	HashMap<Integer, ArrayList<SharedMapping>> frames, int ppn,
+	VMProcess process, int vpn) {
+	ArrayList<SharedMapping> mappings = frames.get(ppn);
+	Lib.assertTrue(mappings != null);
+
+	for (int i=0; i<mappings.size(); i++) {
+	    SharedMapping mapping = mappings.get(i);
+	    if (mapping.process == process && mapping.vpn == vpn) {
+		mappings.remove(i);
+		if (mappings.isEmpty())
+		    frames.remove(ppn);
+		return;
+	    }
+	}
+
+	Lib.assertNotReached("no mapping of ppn " + ppn);
+    }
+
+    /**
+     * Test whether a physical page is shared by processes, copy-on-write or
+     * as a page of the section cache, rather than owned by one.
+     */
+    static boolean isSharedFrame(int ppn) {
+	return sharedFrames.containsKey(ppn) || textFrames.containsKey(ppn);
+    }
+
+    /**
+     * Evict a shared physical page. A page of the section cache is clean, so
+     * it is just taken away from every process that maps it
+     * (<tt>evictText()</tt>). For a copy-on-write page, each process that
+     * maps it saves the contents as a private page of its own and drops its
+     * share, and the last share frees the page. Must be called while holding
+     * <tt>vmLock</tt>.
+     *
+     * @return	<tt>true</tt> if the page was freed, or <tt>false</tt> if it
+     *		could not be. A copy-on-write page is then still shared by
+     *		the processes that have not saved it yet.
+     */
+    static boolean evictShared(int ppn) {
+	if (textFrames.containsKey(ppn))
+	    return evictText(ppn);
+
+	ArrayList<SharedMapping> mappings = sharedFrames.get(ppn);
+
+	while (mappings != null && !mappings.isEmpty()) {
+	    SharedMapping mapping = mappings.get(mappings.size()-1);
+	    if (!mapping.process.pageOutShared(mapping.vpn))
+		return false;
+
+	    removeSharedMapping(ppn, mapping.process, mapping.vpn);
+	    if (UserKernel.unsharePage(ppn)) {
+		Lib.debug(dbgVM, "evicted shared ppn " + ppn);
+		numEvictions++;
+		return true;
+	    }
+	}
+
+	return false;
+    }
+
+    /**
+     * Evict a page of the section cache. Every process that maps it has the
+     * page invalidated, and reloads it from its executable on the next
+     * fault.
+     *
+     * @return	<tt>true</tt> if the page was freed, or <tt>false</tt> if the
+     *		section cache refused, because something other than these
+     *		processes still uses the page.
+     */
+    private static boolean evictText(int ppn) {
+	ArrayList<SharedMapping> mappings = textFrames.get(ppn);
+	if (!UserKernel.sectionCache.evict(ppn, mappings.size()))
+	    return false;
+
+	textFrames.remove(ppn);
+	for (SharedMapping mapping : mappings)
+	    mapping.process.dropText(mapping.vpn);
+
+	UserKernel.releasePage(ppn);
+
+	Lib.debug(dbgVM, "evicted text ppn " + ppn);
+	numEvictions++;
+	return true;
+    }
+
+    /**
+     * Return the process whose page a physical page holds.
+     */
+    static VMProcess getFrameOwner(int ppn) {
+	return frameOwner[ppn];
+    }
+
+    /**
+     * Return the virtual page a physical page holds.
+     */
+    static int getFrameVPN(int ppn) {
+	return frameVPN[ppn];
+    }
+
+    /**
+     * Mark a physical page as being written to swap by the page daemon. Its
+     * page is invalid, but the contents stay until the write completes.
+     */
+    static void beginTransit(int ppn) {
+	frameInTransit[ppn] = true;
+	numInTransit++;
+    }
+
+    /**
+     * Clear the mark set by <tt>beginTransit()</tt>.
+     *
+     * @return	<tt>true</tt> if the page was still marked, or
+     *		<tt>false</tt> if its owner took it back meanwhile.
+     */
+    static boolean endTransit(int ppn) {
+	if (!frameInTransit[ppn])
+	    return false;
+
+	frameInTransit[ppn] = false;
+	numInTransit--;
+	return true;
+    }
+
+    /**
+     * Take back a page that the page daemon is still writing out, so a fault
+     * on it needs no I/O.
+     *
+     * @return	<tt>true</tt> if <i>ppn</i> still holds the page.
+     */
+    static boolean rescue(int ppn, VMProcess process, int vpn) {
+	return isInTransit(ppn, process, vpn) && endTransit(ppn);
+    }
+
+    /**
+     * Note that the owner of a page being written out has exited. The page
+     * daemon frees the physical page when the write completes.
+     */
+    static void abandon(int ppn, VMProcess process, int vpn) {
+	if (isInTransit(ppn, process, vpn))
+	    removeFrame(ppn);
+    }
+
+    /**
+     * Test whether the page daemon is writing out a page of a process from
+     * physical page <i>ppn</i>.
+     */
+    static boolean isInTransit(int ppn, VMProcess process, int vpn) {
+	return ppn >= 0 && frameInTransit[ppn] && frameOwner[ppn] == process &&
+	    frameVPN[ppn] == vpn;
+    }
+
+    /**
+     * Keep a physical page from being evicted until <tt>unpin()</tt>, while
+     * the kernel copies to or from it. Must be called while holding
+     * <tt>vmLock</tt>.
+     */
+    static void pin(int ppn) {
+	framePins[ppn]++;
+    }
+
+    /**
+     * Undo one <tt>pin()</tt>.
+     */
+    static void unpin(int ppn) {
+	Lib.assertTrue(framePins[ppn] > 0);
+	framePins[ppn]--;
+    }
+
+    /**
+     * Test whether a physical page is pinned or being written out, so its
+     * contents or mapping must not be changed.
+     */
+    static boolean isBusy(int ppn) {
+	return framePins[ppn] > 0 || frameInTransit[ppn];
+    }
+
+    /**
+     * Pick a page with the clock algorithm and evict it. Pages whose used bit
+     * is set get a second chance; pinned pages are skipped. A dirty victim is
+     * written to swap first, a clean one is just dropped, and a shared one is
+     * taken from every process that maps it (<tt>evictShared()</tt>). Must be
+     * called while holding <tt>vmLock</tt>.
+     *
+     * @return	<tt>true</tt> if a page was freed.
+     */
+    static boolean evictPage() {
+	// get the current process's used and dirty bits out of the TLB
+	UserProcess current = UserKernel.currentProcess();
+	if (current instanceof VMProcess)
+	    ((VMProcess) current).flushTLB();
+
+	// a page that cannot be written out stays a candidate, so give up
+	// after one sweep's worth of victims
+	int ppn;
+	for (int tries=0; tries<frameOwner.length &&
+		 (ppn = nextVictim()) != -1; tries++) {
+	    if (isSharedFrame(ppn)) {
+		if (evictShared(ppn))
+		    return true;
+		continue;
+	    }
+
+	    VMProcess owner = frameOwner[ppn];
+	    int vpn = frameVPN[ppn];
+
+	    removeFrame(ppn);
+	    if (!owner.pageOut(vpn)) {
+		addFrame(ppn, owner, vpn);
+		continue;
+	    }
+
+	    numEvictions++;
+	    UserKernel.releasePage(ppn);
+	    return true;
+	}
+
+	Lib.debug(dbgVM, "no page to evict");
+	return false;
+    }
+
+    /**
+     * Advance the clock hand to the next page that has not been used since
+     * the hand last passed it, clearing used bits on the way. A shared page
+     * counts as used if any process that maps it used it. Pinned pages,
+     * pages being written out, and pages no process maps are skipped, as are
+     * copy-on-write pages that a template in the image cache also holds,
+     * since evicting them would free nothing; <tt>allocateFrame()</tt> drops
+     * the templates first. The section cache itself refuses text pages that
+     * a template holds (<tt>evictText()</tt>). Must be called while holding
+     * <tt>vmLock</tt>.
+     *
+     * @return	the physical page number, or -1 if two full sweeps found
+     *		nothing.
+     */
+    static int nextVictim() {
+	for (int i=0; i<2*frameOwner.length; i++) {
+	    int ppn = clockHand;
+	    clockHand = (clockHand + 1) % frameOwner.length;
+
+	    if (framePins[ppn] > 0 || frameInTransit[ppn])
+		continue;
+
+	    VMProcess owner = frameOwner[ppn];
+	    ArrayList<SharedMapping> mappings = sharedFrames.get(ppn);
+	    if (mappings == null)
+		mappings = textFrames.get(ppn);
+
+	    if (owner != null) {
+		if (!owner.clearUsed(frameVPN[ppn]))
+		    return ppn;
+	    }
+	    else if (mappings != null &&
+		     (textFrames.containsKey(ppn) ||
+		      mappings.size() == UserKernel.getNumShares(ppn))) {
+		boolean used = false;
+		for (SharedMapping mapping : mappings)
+		    used |= mapping.process.clearUsed(mapping.vpn);
+		if (!used)
+		    return ppn;
+	    }
+	}
+
+	return -1;
+    }
+
+    /** A page of a process mapped to a shared physical page. */
+    private static class SharedMapping {
+	SharedMapping(VMProcess process, int vpn) {
+	    this.process = process;
+	    this.vpn = vpn;
+	}
+
+	VMProcess process;
+	int vpn;
+    }
+
+    /** Guards the frame table, the swap file and every VM page table. */
+    static Lock vmLock;
+    /** The backing store for evicted pages. */
+    static SwapFile swap;
+    /**
+     * The compressed tier in front of the swap file, or <tt>null</tt> if
+     * <tt>VMKernel.compressedPoolSize</tt> is 0.
+     */
+    static CompressedStore compressedStore = null;
+    /** Wakes the page daemon. */
+    static Condition needFrames;
+    /** Signalled by the page daemon when it has freed pages. */
+    static Condition framesFreed;
+
+    /** The page daemon runs when fewer pages than this are free. */
+    static int lowWater;
+    /** The number of free pages the page daemon aims for. */
+    static int highWater;
+
+    /** The number of pages brought into memory. */
+    static int numPageFaults = 0;
+    /** The number of pages evicted. */
+    static int numEvictions = 0;
+    /** The number of untouched pages mapped to the zero page. */
+    static int numZeroMapped = 0;
+    /** The number of pages merged into another page with the same contents. */
+    static int numMerged = 0;
+    /** The number of shared pages copied, or made private, on a write. */
+    static int numCopiesOnWrite = 0;
+    /** The number of TLB misses that loaded a whole superpage. */
+    static int numSuperpageLoads = 0;
+
+    /**
+     * A page of zeros, never written or evicted, which every page that would
+     * be zero-filled maps read-only until it is first written.
+     */
+    static int zeroPage;
+    /**
+     * The number of ticks between the page merger's scans, or 0 if it is not
+     * run. Set by <tt>VMKernel.mergeInterval</tt>.
+     */
+    static int mergeInterval;
+    /**
+     * The number of pages in a superpage, a power of 2 no larger than the
+     * TLB. An aligned group of this many resident pages with the same
+     * protection is loaded into the TLB on one miss. Set by
+     * <tt>VMKernel.superpageSize</tt>; 1, the default, turns superpages off.
+     */
+    static int superpageSize;
+
+    /** The process whose page each physical page holds, or null. */
+    private static VMProcess[] frameOwner;
+    /** The virtual page each physical page holds. */
+    private static int[] frameVPN;
+    /**
+     * The pages mapped to each physical page shared copy-on-write, other
+     * than the zero page. Shared pages have no owner in <tt>frameOwner</tt>.
+     */
+    private static HashMap<Integer, ArrayList<SharedMapping>> sharedFrames =
+	new HashMap<Integer, ArrayList<SharedMapping>>();
+    /** The pages mapped to each physical page of the section cache. */
+    private static HashMap<Integer, ArrayList<SharedMapping>> textFrames =
+	new HashMap<Integer, ArrayList<SharedMapping>>();
+    /** The number of kernel copies in progress on each physical page. */
+    private static int[] framePins;
+    /** Whether the page daemon is writing out each physical page. */
+    private static boolean[] frameInTransit;
+    private static int numInTransit = 0;
+    private static int clockHand = 0;
+
+    private static final String swapFileName = "nachos.swp";
+    private static final int pageSize = Processor.pageSize;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
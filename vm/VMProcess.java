@@ -5,6 +5,11 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.io.EOFException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
@@ -18,36 +23,325 @@ public class VMProcess extends UserProcess {
 
     /**
      * Save the state of this process in preparation for a context switch.
-     * Called by <tt>UThread.saveState()</tt>.
+     * Called by <tt>UThread.saveState()</tt>. The used and dirty bits in the
+     * TLB are copied to the page table, and the pages the TLB maps are
+     * remembered for <tt>restoreState()</tt>.
      */
     public void saveState() {
 	super.saveState();
+
+	Processor processor = Machine.processor();
+	if (!processor.hasTLB())
+	    return;
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    syncTLBEntry(i);
+
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    savedTLB[i] = tlbEntry.valid ? tlbEntry.vpn : -1;
+	}
     }
 
     /**
      * Restore the state of this process after a context switch. Called by
-     * <tt>UThread.restoreState()</tt>.
+     * <tt>UThread.restoreState()</tt>. Rather than starting with an empty
+     * TLB and missing on every page again, the TLB is reloaded with the
+     * pages it held when this process was switched out, taken from the page
+     * table; pages evicted or remapped meanwhile are left out.
      */
     public void restoreState() {
-	super.restoreState();
+	Processor processor = Machine.processor();
+	if (!processor.hasTLB()) {
+	    processor.setPageTable(pages == null ? null :
+				   pages.getHardwareTable());
+	    return;
+	}
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    int vpn = savedTLB[i];
+	    if (pages != null && pages.isMapped(vpn) &&
+		pages.test(vpn, PageTable.pageValid))
+		processor.writeTLBEntry(i, pages.fill(vpn, refillEntry));
+	    else
+		processor.writeTLBEntry(i, invalidEntry);
+	}
     }
 
     /**
      * Initializes page tables for this process so that the executable can be
-     * demand-paged.
+     * demand-paged. No memory is allocated and nothing is read from the
+     * executable; every page starts out invalid and is brought in by
+     * <tt>handlePageFault()</tt> the first time it is touched.
      *
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	pages = new PageTable(numPages);
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    for (int i=0; i<section.getLength(); i++)
+		pages.map(section.getFirstVPN()+i, section.isReadOnly());
+	}
+	// the stack and argument pages
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    if (!pages.isMapped(vpn))
+		pages.map(vpn, false);
+	}
+
+	// the heap starts out empty, right above them
+	heapBase = numPages;
+	heapBreak = numPages*pageSize;
+
+	return true;
+    }
+
+    /**
+     * Initializes page tables for this process from a template in the image
+     * cache. Every page the template holds is mapped at once: read-only
+     * pages as shared section pages, and the template's data pages
+     * copy-on-write. The rest start out as holes that fault to the zero
+     * page, as in <tt>loadSections()</tt>.
+     *
+     * @return	<tt>true</tt> if successful.
+     */
+    protected boolean loadImage(ImageCache.Image image) {
+	pages = new PageTable(numPages);
+
+	VMKernel.vmLock.acquire();
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    int ppn = (vpn < image.getNumPages()) ? image.getPPN(vpn) : -1;
+	    pages.map(vpn, ppn != -1);
+	    if (ppn == -1)
+		continue;
+
+	    boolean cow = !image.isReadOnly(vpn);
+	    if (cow)
+		VMKernel.addSharedMapping(ppn, this, vpn);
+	    else
+		VMKernel.addTextMapping(ppn, this, vpn);
+
+	    pages.setPPN(vpn, ppn);
+	    pages.set(vpn, PageTable.pageCopyOnWrite, cow);
+	    pages.set(vpn, PageTable.pageValid, true);
+	}
+
+	VMKernel.vmLock.release();
+
+	heapBase = numPages;
+	heapBreak = numPages*pageSize;
+
+	return true;
+    }
+
+    /**
+     * Share another process's address space copy-on-write, for fork().
+     * Resident pages are shared as they are; pages the parent has paged out
+     * are brought back in first, since swap slots are not shared. Pages it
+     * has never touched stay invalid, and are loaded from this process's own
+     * copy of the executable, unless the parent was cloned from the image
+     * cache and has none. Memory-mapped files are not inherited.
+     *
+     * @return	<tt>true</tt> if successful.
+     */
+    protected boolean forkSections(UserProcess parent) {
+	VMProcess vmParent = (VMProcess) parent;
+
+	// a clone maps every page of its executable from the start
+	if (vmParent.coff == null)
+	    coff = null;
+	else if (!openExecutable())
+	    return false;
+
+	PageTable parentPages = vmParent.pages;
+	heapBase = vmParent.heapBase;
+	heapBreak = vmParent.heapBreak;
+
+	pages = new PageTable(numPages);
+	for (int vpn=parentPages.nextMapped(0); vpn!=-1;
+	     vpn=parentPages.nextMapped(vpn+1)) {
+	    if (!vmParent.isFileMapped(vpn))
+		pages.map(vpn, parentPages.test(vpn, PageTable.pageReadOnly));
+	}
+
+	VMKernel.vmLock.acquire();
+
+	// no writable translation of a page shared below may stay in the TLB
+	vmParent.flushTLB();
+
+	for (int vpn=pages.nextMapped(0); vpn!=-1;
+	     vpn=pages.nextMapped(vpn+1)) {
+
+	    if (!parentPages.test(vpn, PageTable.pageValid) &&
+		vmParent.isPagedOut(vpn) && !vmParent.handlePageFault(vpn)) {
+		VMKernel.vmLock.release();
+		unloadSections();
+		return false;
+	    }
+	    if (!parentPages.test(vpn, PageTable.pageValid))
+		continue;
+
+	    int ppn = parentPages.getPPN(vpn);
+	    boolean cow = parentPages.test(vpn, PageTable.pageCopyOnWrite);
+	    if (cow) {
+		if (ppn != VMKernel.zeroPage) {
+		    UserKernel.sharePage(ppn);
+		    VMKernel.addSharedMapping(ppn, this, vpn);
+		}
+	    }
+	    else if (parentPages.test(vpn, PageTable.pageReadOnly)) {
+		UserKernel.sectionCache.reference(ppn);
+		VMKernel.addTextMapping(ppn, this, vpn);
+	    }
+	    else {
+		VMKernel.removeFrame(ppn);
+		vmParent.shareFrame(vpn, ppn);
+		UserKernel.sharePage(ppn);
+		VMKernel.addSharedMapping(ppn, this, vpn);
+		cow = true;
+	    }
+
+	    pages.setPPN(vpn, ppn);
+	    pages.set(vpn, PageTable.pageCopyOnWrite, cow);
+	    pages.set(vpn, PageTable.pageReadOnly, true);
+	    pages.set(vpn, PageTable.pageValid, true);
+	}
+
+	VMKernel.vmLock.release();
+
+	return true;
     }
 
     /**
-     * Release any resources allocated by <tt>loadSections()</tt>.
+     * Open and parse this process's own copy of its executable, checking
+     * that it has not been replaced since it was first loaded.
+     */
+    private boolean openExecutable() {
+	OpenFile executable = ThreadedKernel.fileSystem.open(executableName,
+							     false);
+	if (executable == null)
+	    return false;
+
+	try {
+	    coff = new Coff(executable);
+	}
+	catch (EOFException e) {
+	    executable.close();
+	    return false;
+	}
+
+	if (executable.length() != executableLength) {
+	    // replaced since the parent loaded it
+	    coff.close();
+	    coff = null;
+	    return false;
+	}
+
+	return true;
+    }
+
+    /**
+     * Release any resources allocated by <tt>loadSections()</tt>, after
+     * writing back any memory-mapped files.
      */
     protected void unloadSections() {
-	super.unloadSections();
-    }    
+	if (coff != null)
+	    coff.close();
+
+	VMKernel.vmLock.acquire();
+
+	while (!mappings.isEmpty())
+	    unmap(mappings.get(0));
+
+	int[] ppns = new int[pages.getNumMapped()];
+	int i = 0;
+	for (int vpn=pages.nextMapped(0); vpn!=-1;
+	     vpn=pages.nextMapped(vpn+1))
+	    ppns[i++] = dropPage(vpn);
+	UserKernel.releasePages(ppns);
+
+	pages = null;
+
+	VMKernel.vmLock.release();
+    }
+
+    /**
+     * Give back everything held for a page that is leaving the address
+     * space: its swap slot, its compressed copy, and its physical page if
+     * that is shared. Must be called while holding <tt>VMKernel.vmLock</tt>.
+     *
+     * @param	vpn	a virtual page of this process.
+     * @return	the physical page, if it was private to this process and is
+     *		now for the caller to free, or -1.
+     */
+    private int dropPage(int vpn) {
+	if (pages.getSwapSlot(vpn) != -1)
+	    VMKernel.swap.freeSlot(pages.getSwapSlot(vpn));
+
+	CompressedStore.Page page = compressedPages.remove(vpn);
+	if (page != null)
+	    VMKernel.compressedStore.remove(page);
+
+	int ppn = pages.getPPN(vpn);
+	if (!pages.test(vpn, PageTable.pageValid)) {
+	    VMKernel.abandon(ppn, this, vpn);
+	}
+	else if (pages.test(vpn, PageTable.pageCopyOnWrite)) {
+	    if (ppn != VMKernel.zeroPage) {
+		VMKernel.removeSharedMapping(ppn, this, vpn);
+		UserKernel.unsharePage(ppn);
+	    }
+	}
+	else if (pages.test(vpn, PageTable.pageReadOnly)) {
+	    VMKernel.removeTextMapping(ppn, this, vpn);
+	    UserKernel.sectionCache.release(ppn);
+	}
+	else {
+	    VMKernel.removeFrame(ppn);
+	    return ppn;
+	}
+	return -1;
+    }
+
+    /**
+     * Return the page table entry for a page, first bringing the page into
+     * memory if it is not resident. Used by the kernel when it copies to or
+     * from user memory; the page cannot be evicted until
+     * <tt>releaseTranslationEntry()</tt>.
+     */
+    public TranslationEntry getTranslationEntry(int vpn, boolean writeNotRead) {
+	if (vpn < 0 || vpn >= numPages)
+	    return null;
+
+	VMKernel.vmLock.acquire();
+
+	TranslationEntry entry = null;
+	if (pages.isMapped(vpn) &&
+	    (pages.test(vpn, PageTable.pageValid) || handlePageFault(vpn)) &&
+	    (!writeNotRead || !pages.test(vpn, PageTable.pageReadOnly) ||
+	     breakCopyOnWrite(vpn))) {
+	    pages.set(vpn, PageTable.pageUsed, true);
+	    if (writeNotRead)
+		pages.set(vpn, PageTable.pageDirty, true);
+
+	    entry = pages.fill(vpn, new TranslationEntry());
+	    VMKernel.pin(entry.ppn);
+	}
+
+	VMKernel.vmLock.release();
+
+	return entry;
+    }
+
+    /**
+     * Let the page returned by <tt>getTranslationEntry()</tt> be evicted
+     * again.
+     */
+    protected void releaseTranslationEntry(TranslationEntry entry) {
+	VMKernel.vmLock.acquire();
+	VMKernel.unpin(entry.ppn);
+	VMKernel.vmLock.release();
+    }
 
     /**
      * Handle a user exception. Called by
@@ -59,14 +353,913 @@ public class VMProcess extends UserProcess {
      */
     public void handleException(int cause) {
 	Processor processor = Machine.processor();
+	int vpn = Processor.pageFromAddress(
+	    processor.readRegister(Processor.regBadVAddr));
 
 	switch (cause) {
+	case Processor.exceptionTLBMiss:
+	    if (!handleTLBMiss(vpn))
+		super.handleException(cause);
+	    break;
+
+	case Processor.exceptionPageFault:
+	    if (!faultIn(vpn))
+		super.handleException(cause);
+	    break;
+
+	case Processor.exceptionReadOnly:
+	    if (!handleReadOnly(vpn))
+		super.handleException(cause);
+	    break;
+
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
-	
+
+    /**
+     * Load the translation for a page into the TLB, faulting the page in if
+     * necessary. The faulting instruction is restarted when the exception
+     * handler returns.
+     *
+     * <p>
+     * If superpages are enabled and the page lies in an aligned group of
+     * <tt>VMKernel.superpageSize</tt> pages that are all resident with the
+     * same protection, the whole group is loaded at once, so that the
+     * following pages do not miss.
+     *
+     * @param	vpn	the virtual page that missed.
+     * @return	<tt>true</tt> if the page is now in the TLB.
+     */
+    private boolean handleTLBMiss(int vpn) {
+	if (vpn < 0 || vpn >= numPages)
+	    return false;
+
+	VMKernel.vmLock.acquire();
+
+	if (!pages.isMapped(vpn) ||
+	    !pages.test(vpn, PageTable.pageValid) && !handlePageFault(vpn)) {
+	    VMKernel.vmLock.release();
+	    return false;
+	}
+
+	Processor processor = Machine.processor();
+
+	int base = vpn & ~(VMKernel.superpageSize - 1);
+	if (VMKernel.superpageSize > 1 &&
+	    isPromotable(base, pages.test(vpn, PageTable.pageReadOnly))) {
+	    loadTLBGroup(base);
+	    VMKernel.vmLock.release();
+	    return true;
+	}
+
+	// take an invalid slot if there is one, otherwise the next in turn
+	int victim = -1;
+	for (int i=0; i<processor.getTLBSize() && victim == -1; i++) {
+	    if (!processor.readTLBEntry(i).valid)
+		victim = i;
+	}
+	if (victim == -1) {
+	    victim = nextTLBVictim;
+	    nextTLBVictim = (nextTLBVictim + 1) % processor.getTLBSize();
+	    syncTLBEntry(victim);
+	}
+
+	// still holding vmLock, so the page cannot have been evicted
+	processor.writeTLBEntry(victim, pages.fill(vpn, refillEntry));
+
+	VMKernel.vmLock.release();
+	return true;
+    }
+
+    /**
+     * Test whether the aligned group of pages starting at <i>base</i> can be
+     * loaded into the TLB as one superpage: every page resident, and all
+     * writable or all read-only.
+     */
+    private boolean isPromotable(int base, boolean readOnly) {
+	if (base + VMKernel.superpageSize > numPages)
+	    return false;
+
+	for (int vpn=base; vpn<base+VMKernel.superpageSize; vpn++) {
+	    if (!pages.isMapped(vpn) || !pages.test(vpn, PageTable.pageValid) ||
+		pages.test(vpn, PageTable.pageReadOnly) != readOnly)
+		return false;
+	}
+	return true;
+    }
+
+    /**
+     * Load a promotable group of pages into the next block of
+     * <tt>VMKernel.superpageSize</tt> adjacent TLB entries. Any other entries
+     * for the same pages are dropped, so no page is in the TLB twice.
+     */
+    private void loadTLBGroup(int base) {
+	Processor processor = Machine.processor();
+	int size = VMKernel.superpageSize;
+
+	int first = nextTLBGroup * size;
+	nextTLBGroup = (nextTLBGroup + 1) % (processor.getTLBSize() / size);
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    boolean inBlock = (i >= first && i < first + size);
+	    boolean inGroup = tlbEntry.valid && tlbEntry.vpn >= base &&
+		tlbEntry.vpn < base + size;
+
+	    if (inBlock || inGroup) {
+		syncTLBEntry(i);
+		processor.writeTLBEntry(i, invalidEntry);
+	    }
+	}
+
+	for (int i=0; i<size; i++)
+	    processor.writeTLBEntry(first + i,
+				    pages.fill(base + i, refillEntry));
+
+	VMKernel.numSuperpageLoads++;
+    }
+
+    /**
+     * Make a page resident, for a page fault taken without a TLB.
+     */
+    private boolean faultIn(int vpn) {
+	if (vpn < 0 || vpn >= numPages)
+	    return false;
+
+	VMKernel.vmLock.acquire();
+	boolean valid = pages.isMapped(vpn) &&
+	    (pages.test(vpn, PageTable.pageValid) || handlePageFault(vpn));
+	VMKernel.vmLock.release();
+
+	return valid;
+    }
+
+    /**
+     * Handle a write to a read-only page. If the page is shared
+     * copy-on-write, give this process its own copy and restart the
+     * instruction; a real read-only page is an error. A shared page may have
+     * been evicted while we waited for <tt>vmLock</tt>; the restarted
+     * instruction then faults it back in as a private page.
+     */
+    private boolean handleReadOnly(int vpn) {
+	if (vpn < 0 || vpn >= numPages)
+	    return false;
+
+	VMKernel.vmLock.acquire();
+	boolean writable = pages.isMapped(vpn) &&
+	    (!pages.test(vpn, PageTable.pageValid) || breakCopyOnWrite(vpn));
+	VMKernel.vmLock.release();
+
+	return writable;
+    }
+
+    /**
+     * Make a copy-on-write page writable. A page still mapped by some other
+     * page table is copied into a new physical page (the zero page just
+     * needs a zero-filled one); a page whose other mappings are all gone is
+     * used as it is. Must be called while holding <tt>VMKernel.vmLock</tt>.
+     *
+     * @param	vpn	a virtual page of this process.
+     * @return	<tt>true</tt> if the page is now writable, or <tt>false</tt>
+     *		if it is not a resident copy-on-write page or there is no
+     *		memory for the copy.
+     */
+    protected boolean breakCopyOnWrite(int vpn) {
+	Lib.assertTrue(VMKernel.vmLock.isHeldByCurrentThread());
+
+	if (!pages.isMapped(vpn) || !pages.test(vpn, PageTable.pageValid) ||
+	    !pages.test(vpn, PageTable.pageCopyOnWrite))
+	    return false;
+
+	int shared = pages.getPPN(vpn);
+	int ppn = shared;
+	if (shared != VMKernel.zeroPage)
+	    VMKernel.removeSharedMapping(shared, this, vpn);
+
+	if (shared == VMKernel.zeroPage || UserKernel.isPageShared(shared)) {
+	    ppn = (shared == VMKernel.zeroPage) ?
+		VMKernel.allocateZeroedFrame() : VMKernel.allocateFrame();
+	    if (ppn == -1) {
+		if (shared != VMKernel.zeroPage)
+		    VMKernel.addSharedMapping(shared, this, vpn);
+		Lib.debug(dbgVM, "no physical page to copy vpn " + vpn);
+		return false;
+	    }
+
+	    if (shared != VMKernel.zeroPage) {
+		byte[] memory = Machine.processor().getMemory();
+		System.arraycopy(memory, shared*pageSize, memory, ppn*pageSize,
+				 pageSize);
+		UserKernel.unsharePage(shared);
+	    }
+	}
+
+	Lib.debug(dbgVM, "copy-on-write vpn " + vpn + " from ppn " + shared
+		  + " to ppn " + ppn);
+
+	VMKernel.numCopiesOnWrite++;
+	VMKernel.addFrame(ppn, this, vpn);
+
+	pages.setPPN(vpn, ppn);
+	pages.set(vpn, PageTable.pageCopyOnWrite, false);
+	pages.set(vpn, PageTable.pageReadOnly, false);
+	pages.set(vpn, PageTable.pageUsed, true);
+	pages.set(vpn, PageTable.pageDirty, true);	// the only copy now
+
+	updateTLBEntry(vpn);
+	return true;
+    }
+
+    /**
+     * Map a resident page to a physical page shared copy-on-write, which
+     * holds the same contents, recording the mapping unless it is the zero
+     * page. Called by <tt>PageMerger</tt> and <tt>forkSections()</tt>, which
+     * maintain the frame table and the page's share count.
+     *
+     * @param	vpn	a resident virtual page of this process.
+     * @param	ppn	the shared physical page.
+     */
+    void shareFrame(int vpn, int ppn) {
+	Lib.assertTrue(pages.test(vpn, PageTable.pageValid) &&
+		       !pages.test(vpn, PageTable.pageReadOnly));
+
+	if (ppn != VMKernel.zeroPage)
+	    VMKernel.addSharedMapping(ppn, this, vpn);
+
+	pages.setPPN(vpn, ppn);
+	pages.set(vpn, PageTable.pageCopyOnWrite, true);
+	pages.set(vpn, PageTable.pageReadOnly, true);
+	pages.set(vpn, PageTable.pageDirty, false);
+    }
+
+    /**
+     * Bring a page into memory. A page that was evicted dirty is read back
+     * from swap. Otherwise it is still as it was first loaded: read-only
+     * executable pages come from the shared section cache, other executable
+     * pages are loaded from their section, and stack, argument, bss and heap
+     * pages are mapped to the zero page until they are written. Must be called
+     * while holding <tt>VMKernel.vmLock</tt>.
+     *
+     * @param	vpn	the virtual page to bring in.
+     * @return	<tt>true</tt> if the page is now valid.
+     */
+    protected boolean handlePageFault(int vpn) {
+	Lib.assertTrue(VMKernel.vmLock.isHeldByCurrentThread());
+
+	Lib.assertTrue(!pages.test(vpn, PageTable.pageValid));
+
+	if (VMKernel.rescue(pages.getPPN(vpn), this, vpn)) {
+	    // the page daemon had not finished writing it out
+	    pages.set(vpn, PageTable.pageValid, true);
+	    pages.set(vpn, PageTable.pageDirty, true);
+	    return true;
+	}
+
+	VMKernel.numPageFaults++;
+
+	// a clone has no executable until a page of its text is evicted
+	if (coff == null && pages.test(vpn, PageTable.pageReadOnly) &&
+	    !pages.test(vpn, PageTable.pageCopyOnWrite) && !openExecutable()) {
+	    Lib.debug(dbgVM, "cannot reopen " + executableName);
+	    return false;
+	}
+
+	int s;
+	CoffSection section = null;
+	for (s=0; coff!=null && s<coff.getNumSections(); s++) {
+	    CoffSection candidate = coff.getSection(s);
+	    if (vpn >= candidate.getFirstVPN() &&
+		vpn < candidate.getFirstVPN() + candidate.getLength()) {
+		section = candidate;
+		break;
+	    }
+	}
+
+	int ppn;
+	boolean dirty = false;
+	if (pages.getSwapSlot(vpn) == -1 && !compressedPages.containsKey(vpn) &&
+	    !isFileMapped(vpn) &&
+	    (section == null || !section.isInitialzed())) {
+	    // never written, so it is still all zeros
+	    ppn = VMKernel.zeroPage;
+	    pages.set(vpn, PageTable.pageCopyOnWrite, true);
+	    pages.set(vpn, PageTable.pageReadOnly, true);
+	    VMKernel.numZeroMapped++;
+	}
+	else if (section != null && section.isReadOnly()) {
+	    int spn = vpn - section.getFirstVPN();
+	    do {
+		ppn = UserKernel.sectionCache.acquire(executableName,
+						      executableLength, s,
+						      section, spn, null);
+	    } while (ppn == -1 && VMKernel.evictPage());
+
+	    if (ppn != -1)
+		VMKernel.addTextMapping(ppn, this, vpn);
+	}
+	else {
+	    // a page restored from the compressed store has no other copy
+	    dirty = compressedPages.containsKey(vpn);
+
+	    ppn = VMKernel.allocateFrame();
+	    if (ppn != -1 && !fillPage(vpn, section, ppn)) {
+		UserKernel.releasePage(ppn);
+		ppn = -1;
+	    }
+	    if (ppn != -1)
+		VMKernel.addFrame(ppn, this, vpn);
+	}
+
+	if (ppn == -1) {
+	    Lib.debug(dbgVM, "no physical page for vpn " + vpn);
+	    return false;
+	}
+
+	Lib.debug(dbgVM, "vpn " + vpn + " -> ppn " + ppn);
+
+	pages.setPPN(vpn, ppn);
+	pages.set(vpn, PageTable.pageUsed, false);
+	pages.set(vpn, PageTable.pageDirty, dirty);
+	pages.set(vpn, PageTable.pageValid, true);
+
+	return true;
+    }
+
+    private boolean fillPage(int vpn, CoffSection section, int ppn) {
+	CompressedStore.Page page = compressedPages.remove(vpn);
+	if (page != null)
+	    return VMKernel.compressedStore.load(page, ppn);
+
+	if (pages.getSwapSlot(vpn) != -1)
+	    return VMKernel.swap.read(pages.getSwapSlot(vpn), ppn);
+
+	if (isFileMapped(vpn))
+	    return findMapping(vpn).read(vpn, ppn);
+
+	if (section != null) {
+	    section.loadPage(vpn - section.getFirstVPN(), ppn);
+	}
+	else {
+	    int paddr = ppn*pageSize;
+	    Arrays.fill(Machine.processor().getMemory(),
+			paddr, paddr+pageSize, (byte) 0);
+	}
+	return true;
+    }
+
+    /**
+     * Test whether a non-resident page has contents that are not in the
+     * executable, because it was evicted after being written.
+     */
+    private boolean isPagedOut(int vpn) {
+	return pages.getSwapSlot(vpn) != -1 ||
+	    compressedPages.containsKey(vpn) ||
+	    VMKernel.isInTransit(pages.getPPN(vpn), this, vpn);
+    }
+
+    /**
+     * Give the clock algorithm's second chance to a page: if its used bit is
+     * set, clear it. Called by <tt>VMKernel.evictPage()</tt>.
+     *
+     * @param	vpn	a resident virtual page of this process.
+     * @return	<tt>true</tt> if the page had been used.
+     */
+    boolean clearUsed(int vpn) {
+	boolean used = pages.test(vpn, PageTable.pageUsed);
+	pages.set(vpn, PageTable.pageUsed, false);
+	return used;
+    }
+
+    /**
+     * Take a page out of memory. A dirty page is written to its swap slot,
+     * allocating one if it has none, or back to its file if it is
+     * memory-mapped; a clean page still matches its swap slot or its
+     * original contents, so it is just dropped. Called by
+     * <tt>VMKernel.evictPage()</tt> and <tt>PageDaemon</tt>, which free the
+     * physical page.
+     *
+     * @param	vpn	a resident virtual page of this process.
+     * @return	<tt>true</tt> if the page was evicted, or <tt>false</tt> if it
+     *		could not be written to swap and is still resident.
+     */
+    boolean pageOut(int vpn) {
+	Lib.assertTrue(pages.test(vpn, PageTable.pageValid) &&
+		       !pages.test(vpn, PageTable.pageReadOnly));
+
+	pages.set(vpn, PageTable.pageValid, false);
+
+	int ppn = pages.getPPN(vpn);
+	boolean saved = !pages.test(vpn, PageTable.pageDirty);
+	if (!saved && isFileMapped(vpn)) {
+	    saved = findMapping(vpn).write(vpn, ppn);
+	}
+	else if (!saved) {
+	    saved = VMKernel.compressedStore != null &&
+		VMKernel.compressedStore.store(this, vpn, ppn);
+	    if (!saved) {
+		if (pages.getSwapSlot(vpn) == -1)
+		    pages.setSwapSlot(vpn, VMKernel.swap.allocateSlot());
+		saved = VMKernel.swap.write(pages.getSwapSlot(vpn), ppn);
+	    }
+	}
+
+	if (!saved) {
+	    pages.set(vpn, PageTable.pageValid, true);
+	    return false;
+	}
+	pages.set(vpn, PageTable.pageDirty, false);
+
+	Lib.debug(dbgVM, "evicted vpn " + vpn + " from ppn " + ppn);
+	return true;
+    }
+
+    /**
+     * Take this process's mapping of a shared copy-on-write page out of
+     * memory. The contents are saved like those of a dirty private page, so
+     * the page comes back as this process's own, writable copy. Called by
+     * <tt>VMKernel.evictShared()</tt>, which drops the mapping and its share
+     * of the physical page.
+     *
+     * @param	vpn	a resident, shared virtual page of this process.
+     * @return	<tt>true</tt> if the page was saved, or <tt>false</tt> if it
+     *		could not be and is still mapped as before.
+     */
+    boolean pageOutShared(int vpn) {
+	Lib.assertTrue(pages.test(vpn, PageTable.pageValid) &&
+		       pages.test(vpn, PageTable.pageCopyOnWrite));
+
+	pages.set(vpn, PageTable.pageCopyOnWrite, false);
+	pages.set(vpn, PageTable.pageReadOnly, false);
+	pages.set(vpn, PageTable.pageDirty, true);
+
+	if (pageOut(vpn))
+	    return true;
+
+	pages.set(vpn, PageTable.pageCopyOnWrite, true);
+	pages.set(vpn, PageTable.pageReadOnly, true);
+	pages.set(vpn, PageTable.pageDirty, false);
+	return false;
+    }
+
+    /**
+     * Invalidate a page of read-only text that the section cache has given
+     * up. It is loaded again, from the section cache or the executable, the
+     * next time it is touched. Called by <tt>VMKernel.evictShared()</tt>,
+     * which has dropped this process's reference to the physical page.
+     *
+     * @param	vpn	a resident text page of this process.
+     */
+    void dropText(int vpn) {
+	Lib.assertTrue(pages.test(vpn, PageTable.pageValid) &&
+		       pages.test(vpn, PageTable.pageReadOnly) &&
+		       !pages.test(vpn, PageTable.pageCopyOnWrite));
+
+	pages.set(vpn, PageTable.pageValid, false);
+
+	Lib.debug(dbgVM, "dropped text vpn " + vpn);
+    }
+
+    /**
+     * Test whether a page is part of a memory-mapped file. Such pages are
+     * written back to the file rather than to swap, and are never shared.
+     *
+     * @param	vpn	a virtual page of this process.
+     */
+    boolean isFileMapped(int vpn) {
+	return pages.test(vpn, PageTable.pageFileMapped);
+    }
+
+    /**
+     * Invalidate a page that the page daemon is evicting. Called by
+     * <tt>PageDaemon</tt>, which frees a clean page at once and writes a
+     * dirty one to swap before calling <tt>endPageOut()</tt> or
+     * <tt>cancelPageOut()</tt>.
+     *
+     * @param	vpn	a resident virtual page of this process.
+     * @return	<tt>true</tt> if the page is dirty and must be written.
+     */
+    boolean beginPageOut(int vpn) {
+	Lib.assertTrue(pages.test(vpn, PageTable.pageValid) &&
+		       !pages.test(vpn, PageTable.pageReadOnly));
+
+	pages.set(vpn, PageTable.pageValid, false);
+	return pages.test(vpn, PageTable.pageDirty);
+    }
+
+    /**
+     * Finish evicting a page whose contents have been written to a new swap
+     * slot.
+     *
+     * @param	vpn	the virtual page.
+     * @param	slot	the slot now holding its contents.
+     */
+    void endPageOut(int vpn, int slot) {
+	if (pages.getSwapSlot(vpn) != -1)
+	    VMKernel.swap.freeSlot(pages.getSwapSlot(vpn));
+
+	pages.setSwapSlot(vpn, slot);
+	pages.set(vpn, PageTable.pageDirty, false);
+
+	Lib.debug(dbgVM, "paged out vpn " + vpn + " to slot " + slot);
+    }
+
+    /**
+     * Take ownership of a page just put in the compressed store. Any swap
+     * slot the page had is now out of date.
+     *
+     * @param	vpn	the virtual page.
+     * @param	page	its compressed contents.
+     */
+    void compressed(int vpn, CompressedStore.Page page) {
+	if (pages.getSwapSlot(vpn) != -1) {
+	    VMKernel.swap.freeSlot(pages.getSwapSlot(vpn));
+	    pages.setSwapSlot(vpn, -1);
+	}
+
+	compressedPages.put(vpn, page);
+    }
+
+    /**
+     * Note that a page was moved from the compressed store to the swap file.
+     *
+     * @param	vpn	the virtual page.
+     * @param	slot	the slot now holding its contents.
+     */
+    void spilled(int vpn, int slot) {
+	compressedPages.remove(vpn);
+	pages.setSwapSlot(vpn, slot);
+    }
+
+    /**
+     * Make a page resident again after the page daemon failed to write it.
+     *
+     * @param	vpn	the virtual page.
+     */
+    void cancelPageOut(int vpn) {
+	pages.set(vpn, PageTable.pageValid, true);
+    }
+
+    /**
+     * Copy the used and dirty bits out of the TLB and invalidate it, so that
+     * the page table is up to date and no stale translation survives an
+     * eviction.
+     */
+    void flushTLB() {
+	if (!Machine.processor().hasTLB())
+	    return;
+
+	for (int i=0; i<Machine.processor().getTLBSize(); i++)
+	    syncTLBEntry(i);
+	invalidateTLB();
+    }
+
+    /**
+     * Replace any TLB entry for a page whose translation has changed, if
+     * this process is the one using the TLB.
+     */
+    private void updateTLBEntry(int vpn) {
+	Processor processor = Machine.processor();
+	if (!processor.hasTLB() || UserKernel.currentProcess() != this)
+	    return;
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (tlbEntry.valid && tlbEntry.vpn == vpn)
+		processor.writeTLBEntry(i, pages.fill(vpn, refillEntry));
+	}
+    }
+
+    private static int[] newSavedTLB() {
+	if (!Machine.processor().hasTLB())
+	    return null;
+
+	int[] saved = new int[Machine.processor().getTLBSize()];
+	Arrays.fill(saved, -1);
+	return saved;
+    }
+
+    private static void invalidateTLB() {
+	Processor processor = Machine.processor();
+	for (int i=0; i<processor.getTLBSize(); i++)
+	    processor.writeTLBEntry(i, invalidEntry);
+    }
+
+    /**
+     * Copy the used and dirty bits of a TLB entry back into the page table.
+     */
+    private void syncTLBEntry(int i) {
+	TranslationEntry tlbEntry = Machine.processor().readTLBEntry(i);
+	int vpn = tlbEntry.vpn;
+	if (!tlbEntry.valid || pages == null || !pages.isMapped(vpn) ||
+	    !pages.test(vpn, PageTable.pageValid) ||
+	    pages.getPPN(vpn) != tlbEntry.ppn)
+	    return;
+
+	if (tlbEntry.used)
+	    pages.set(vpn, PageTable.pageUsed, true);
+	if (tlbEntry.dirty)
+	    pages.set(vpn, PageTable.pageDirty, true);
+    }
+
+    /**
+     * Handle a syscall exception, adding <tt>mmap()</tt>, <tt>munmap()</tt>
+     * and <tt>sbrk()</tt> to the syscalls of <tt>UserProcess</tt>.
+     *
+     * @param	syscall	the syscall number.
+     * @param	a0	the first syscall argument.
+     * @param	a1	the second syscall argument.
+     * @param	a2	the third syscall argument.
+     * @param	a3	the fourth syscall argument.
+     * @return	the value to be returned to the user.
+     */
+    public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+	switch (syscall) {
+	case syscallMmap:
+	    return handleMmap(a0, a1);
+	case syscallMunmap:
+	    return handleMunmap(a0);
+	case syscallSbrk:
+	    return handleSbrk(a0);
+	default:
+	    return super.handleSyscall(syscall, a0, a1, a2, a3);
+	}
+    }
+
+    /**
+     * Handle the <tt>mmap()</tt> system call: map a whole file into memory
+     * at a page-aligned address beyond the rest of the address space. No
+     * page is read yet; each is read from the file the first time it is
+     * touched. The mapping has its own handle on the file, so it outlives the
+     * file descriptor.
+     *
+     * @return	the length of the file, or -1 on error.
+     */
+    private int handleMmap(int fileDescriptor, int address) {
+	if (address <= 0 || address % pageSize != 0)
+	    return -1;
+
+	FileReference fileRef = getFileReference(fileDescriptor);
+	OpenFile file = reopenDescriptor(fileDescriptor);
+	if (file == null)
+	    return -1;
+
+	int length = file.length();
+	int firstVPN = address / pageSize;
+	int count = Lib.divRoundUp(Math.max(length, 0), pageSize);
+
+	VMKernel.vmLock.acquire();
+
+	boolean free = (count > 0 && firstVPN + count <= maxPages);
+	for (int vpn=firstVPN; free && vpn<Math.min(firstVPN+count, numPages);
+	     vpn++)
+	    free = !pages.isMapped(vpn);
+
+	if (!free) {
+	    VMKernel.vmLock.release();
+	    file.close();
+	    releaseGlobalFile(fileRef);
+	    return -1;
+	}
+
+	if (firstVPN + count > numPages)
+	    growAddressSpace(firstVPN + count);
+
+	Mapping mapping = new Mapping(file, fileRef, firstVPN, count, length);
+	mappings.add(mapping);
+	for (int vpn=firstVPN; vpn<firstVPN+count; vpn++) {
+	    pages.map(vpn, false);
+	    pages.set(vpn, PageTable.pageFileMapped, true);
+	}
+
+	VMKernel.vmLock.release();
+
+	Lib.debug(dbgVM, "mapped " + file.getName() + " at vpn " + firstVPN
+		  + " (" + count + " pages)");
+	return length;
+    }
+
+    /**
+     * Handle the <tt>munmap()</tt> system call: write back the dirty pages
+     * of the file mapped at an address, and remove the mapping.
+     *
+     * @return	0 on success, or -1 if no file is mapped at the address.
+     */
+    private int handleMunmap(int address) {
+	int vpn = Processor.pageFromAddress(address);
+	Mapping mapping = (address < 0) ? null : findMapping(vpn);
+	if (mapping == null || mapping.firstVPN != vpn)
+	    return -1;
+
+	VMKernel.vmLock.acquire();
+	boolean written = unmap(mapping);
+	VMKernel.vmLock.release();
+
+	return written ? 0 : -1;
+    }
+
+    /**
+     * Handle the <tt>sbrk()</tt> system call: move the end of the heap, which
+     * starts right above the argument page, by <i>increment</i> bytes. New
+     * heap pages are holes made part of the address space; like bss, each is
+     * mapped to the zero page when first touched and gets a physical page of
+     * its own when first written. Pages the heap shrinks away from are given
+     * back at once.
+     *
+     * @return	the old end of the heap, or -1 if the heap would shrink below
+     *		its start or run into a memory-mapped file or the top of the
+     *		address space.
+     */
+    private int handleSbrk(int increment) {
+	long newBreak = (long) heapBreak + increment;
+	if (newBreak < (long) heapBase*pageSize ||
+	    newBreak > (long) maxPages*pageSize)
+	    return -1;
+
+	int oldTop = Lib.divRoundUp(heapBreak, pageSize);
+	int newTop = (int) ((newBreak + pageSize - 1) / pageSize);
+
+	VMKernel.vmLock.acquire();
+
+	for (int vpn=oldTop; vpn<newTop; vpn++) {
+	    if (pages.isMapped(vpn)) {
+		VMKernel.vmLock.release();
+		return -1;
+	    }
+	}
+
+	if (newTop > numPages)
+	    growAddressSpace(newTop);
+	for (int vpn=oldTop; vpn<newTop; vpn++)
+	    pages.map(vpn, false);
+
+	if (newTop < oldTop) {
+	    // no translation of a page given back may stay in the TLB
+	    flushTLB();
+
+	    for (int vpn=newTop; vpn<oldTop; vpn++) {
+		int ppn = dropPage(vpn);
+		if (ppn != -1)
+		    UserKernel.releasePage(ppn);
+		pages.unmap(vpn);
+	    }
+	}
+
+	VMKernel.vmLock.release();
+
+	int oldBreak = heapBreak;
+	heapBreak = (int) newBreak;
+
+	Lib.debug(dbgVM, "heap break moved from " + oldBreak + " to "
+		  + heapBreak);
+	return oldBreak;
+    }
+
+    /**
+     * Remove a mapping, writing back only the resident pages that are
+     * dirty; pages never touched or still clean match the file already.
+     * Must be called while holding <tt>VMKernel.vmLock</tt>.
+     *
+     * @return	<tt>true</tt> if every dirty page was written.
+     */
+    private boolean unmap(Mapping mapping) {
+	Lib.assertTrue(VMKernel.vmLock.isHeldByCurrentThread());
+
+	// get the dirty bits out of the TLB, and no stale translations left
+	flushTLB();
+
+	boolean written = true;
+	for (int vpn=mapping.firstVPN; vpn<mapping.firstVPN+mapping.numPages;
+	     vpn++) {
+	    if (pages.test(vpn, PageTable.pageValid)) {
+		int ppn = pages.getPPN(vpn);
+		if (pages.test(vpn, PageTable.pageDirty) &&
+		    !mapping.write(vpn, ppn))
+		    written = false;
+
+		VMKernel.removeFrame(ppn);
+		UserKernel.releasePage(ppn);
+	    }
+
+	    pages.unmap(vpn);
+	}
+
+	mappings.remove(mapping);
+	mapping.file.close();
+	if (!releaseGlobalFile(mapping.fileRef))
+	    written = false;
+
+	Lib.debug(dbgVM, "unmapped " + mapping.file.getName());
+	return written;
+    }
+
+    /**
+     * Return the mapping a page belongs to, or <tt>null</tt>.
+     */
+    private Mapping findMapping(int vpn) {
+	for (Mapping mapping : mappings) {
+	    if (vpn >= mapping.firstVPN &&
+		vpn < mapping.firstVPN + mapping.numPages)
+		return mapping;
+	}
+	return null;
+    }
+
+    /**
+     * Extend the address space to <i>newNumPages</i> pages. The new pages
+     * are holes, which cost nothing until they are mapped.
+     */
+    private void growAddressSpace(int newNumPages) {
+	pages.grow(newNumPages);
+	numPages = newNumPages;
+
+	if (!Machine.processor().hasTLB())
+	    Machine.processor().setPageTable(pages.getHardwareTable());
+    }
+
+    /**
+     * A file mapped into memory by <tt>mmap()</tt>.
+     */
+    private static class Mapping {
+	Mapping(OpenFile file, FileReference fileRef, int firstVPN,
+		int numPages, int length) {
+	    this.file = file;
+	    this.fileRef = fileRef;
+	    this.firstVPN = firstVPN;
+	    this.numPages = numPages;
+	    this.length = length;
+	}
+
+	/**
+	 * Read the part of the file behind a page into a physical page,
+	 * zero-filling past the end of the file.
+	 */
+	boolean read(int vpn, int ppn) {
+	    int offset = (vpn - firstVPN) * pageSize;
+	    int amount = Math.min(pageSize, length - offset);
+	    byte[] memory = Machine.processor().getMemory();
+
+	    int read = file.read(offset, memory, ppn*pageSize, amount);
+	    if (read < 0)
+		return false;
+
+	    Arrays.fill(memory, ppn*pageSize + read, (ppn+1)*pageSize,
+			(byte) 0);
+	    return true;
+	}
+
+	/**
+	 * Write a physical page back to the part of the file behind it. The
+	 * file is never extended.
+	 */
+	boolean write(int vpn, int ppn) {
+	    int offset = (vpn - firstVPN) * pageSize;
+	    int amount = Math.min(pageSize, length - offset);
+
+	    return file.write(offset, Machine.processor().getMemory(),
+			      ppn*pageSize, amount) == amount;
+	}
+
+	OpenFile file;
+	FileReference fileRef;
+	int firstVPN, numPages;
+	int length;
+    }
+
+    /** This process's page table; <tt>UserProcess.pageTable</tt> is unused. */
+    private PageTable pages;
+    /** The contents of each page that is in the compressed store. */
+    private HashMap<Integer, CompressedStore.Page> compressedPages =
+	new HashMap<Integer, CompressedStore.Page>();
+    private ArrayList<Mapping> mappings = new ArrayList<Mapping>();
+    /** The first page of the heap. */
+    private int heapBase;
+    /** The address just past the end of the heap, moved by sbrk(). */
+    private int heapBreak;
+    private int nextTLBVictim = 0;
+    /** The next block of TLB entries to hold a superpage. */
+    private int nextTLBGroup = 0;
+    /** The page each TLB entry held when this process was switched out. */
+    private int[] savedTLB = newSavedTLB();
+
+    /** Filled in with each translation copied into the TLB. */
+    private TranslationEntry refillEntry = new TranslationEntry();
+    /** Copied into a TLB entry to invalidate it. */
+    private static final TranslationEntry invalidEntry = new TranslationEntry();
+
+    /**
+     * The address space must end below this page, the top of the positive
+     * addresses.
+     */
+    private static final int maxPages =
+	(int) (0x80000000L / Processor.pageSize);
+
+    private static final int
+	syscallMmap = 10,
+	syscallMunmap = 14,
+	syscallSbrk = 15;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';